@@ -0,0 +1,217 @@
+import java.util.Map;
+
+/**
+ * An aggregate function of a SELECT, COUNT(*), or COUNT, SUM, MIN, MAX or AVG of
+ * a column. It is given the matching rows as the leaves are scanned and reads
+ * the value of its column off the page, with the serial type it is stored
+ * with, so no row is decoded. Null values are left out, and the SUM, MIN, MAX
+ * or AVG of no values is null.
+ */
+public class Aggregate {
+	private static final int COUNT_ALL = 0;
+	private static final int COUNT = 1;
+	private static final int SUM = 2;
+	private static final int MIN = 3;
+	private static final int MAX = 4;
+	private static final int AVG = 5;
+
+	private final String expression;
+	private final int function;
+	// position of the column in the cell values, -1 for row_id
+	private final int column;
+	// offset of the column in the cell values, -1 when a text column before it
+	// makes the offset differ from row to row
+	private final int offset;
+	private long count = 0;
+	private long longSum = 0;
+	private double doubleSum = 0;
+	private boolean isReal = false;
+	// the MIN or MAX so far, as stored
+	private byte bestType;
+	private byte[] best;
+	private long bestLong;
+	private double bestDouble;
+
+	/**
+	 * Compiles an aggregate written function(column_name), or count(*).
+	 */
+	public Aggregate(TableSchema schema, String expression) throws Exception {
+		this.expression = expression;
+		int open = expression.indexOf('(');
+		String name = expression.substring(0, open).trim();
+		String columnName = expression.substring(open + 1, expression.lastIndexOf(')')).trim();
+		switch (name) {
+		case "count":
+			function = columnName.equals("*") ? COUNT_ALL : COUNT;
+			break;
+		case "sum":
+			function = SUM;
+			break;
+		case "min":
+			function = MIN;
+			break;
+		case "max":
+			function = MAX;
+			break;
+		case "avg":
+			function = AVG;
+			break;
+		default:
+			throw new Exception("Unknown aggregate function '" + name + "'.");
+		}
+		if (function == COUNT_ALL) {
+			column = -1;
+			offset = -1;
+			return;
+		}
+
+		int ordinal = -1;
+		for (Map.Entry<Integer, String> entry : schema.getColumnNames().entrySet())
+			if (entry.getValue().equals(columnName))
+				ordinal = entry.getKey();
+		if (ordinal == -1)
+			throw new Exception("Unknown column '" + columnName + "' in " + expression + ".");
+		String dataType = (ordinal == 1) ? "int" : schema.getDataTypes().get(ordinal).trim();
+		if ((function == SUM || function == AVG) && (dataType.equals("text") || dataType.startsWith("date")))
+			throw new Exception(name.toUpperCase() + " can not be applied to the " + dataType + " column "
+					+ columnName + ".");
+		column = ordinal - 2;
+
+		int fixed = 0;
+		for (Map.Entry<Integer, String> entry : schema.getDataTypes().entrySet()) {
+			if (entry.getKey() <= 1 || entry.getKey() >= ordinal)
+				continue;
+			if (entry.getValue().trim().equals("text")) {
+				fixed = -1;
+				break;
+			}
+			fixed += Table.getDataTypeSize(entry.getValue(), 0);
+		}
+		offset = fixed;
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Adds the table leaf cell at recLoc.
+	 */
+	public void add(Page p, int recLoc) throws Exception {
+		if (function == COUNT_ALL) {
+			count++;
+			return;
+		}
+
+		byte dataType;
+		int pos;
+		if (column == -1) {
+			dataType = 0x06;
+			pos = recLoc + 2;
+		} else {
+			int noColumns = p.getByte(recLoc + 6);
+			if (column >= noColumns)
+				return;
+			dataType = p.getByte(recLoc + 7 + column);
+			if (dataType >= 0x00 && dataType <= 0x03)
+				return;
+			pos = recLoc + 7 + noColumns;
+			if (offset != -1)
+				pos += offset;
+			else
+				for (int i = 0; i < column; i++)
+					pos += Table.getSizeByHeader(p.getByte(recLoc + 7 + i));
+		}
+		count++;
+
+		switch (function) {
+		case SUM:
+		case AVG:
+			if (dataType == 0x08 || dataType == 0x09) {
+				isReal = true;
+				doubleSum += (dataType == 0x08) ? p.getFloat(pos) : p.getDouble(pos);
+			} else
+				longSum += getLong(p, pos, dataType);
+			break;
+		case MIN:
+		case MAX:
+			int order;
+			if (best == null)
+				order = (function == MIN) ? -1 : 1;
+			else if (dataType == 0x08 || dataType == 0x09)
+				order = Double.compare((dataType == 0x08) ? p.getFloat(pos) : p.getDouble(pos), bestDouble);
+			else if ((dataType & 0xFF) >= 0x0C)
+				order = compareText(p, pos, (dataType & 0xFF) - 0x0C);
+			else
+				order = Long.compare(getLong(p, pos, dataType), bestLong);
+			if ((function == MIN) ? order < 0 : order > 0)
+				setBest(p, pos, dataType);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static long getLong(Page p, int pos, byte dataType) {
+		switch (dataType) {
+		case 0x04:
+			return p.getByte(pos);
+		case 0x05:
+			return p.getShort(pos);
+		case 0x06:
+			return p.getInt(pos);
+		default:
+			return p.getLong(pos);
+		}
+	}
+
+	/**
+	 * Orders the stored text against the best so far, byte by byte.
+	 */
+	private int compareText(Page p, int pos, int length) {
+		int common = Math.min(length, best.length);
+		for (int i = 0; i < common; i++) {
+			int order = Integer.compare(p.getByte(pos + i) & 0xFF, best[i] & 0xFF);
+			if (order != 0)
+				return order;
+		}
+		return Integer.compare(length, best.length);
+	}
+
+	private void setBest(Page p, int pos, byte dataType) throws Exception {
+		bestType = dataType;
+		best = new byte[Table.getSizeByHeader(dataType)];
+		p.getBytes(pos, best);
+		if (dataType == 0x08 || dataType == 0x09)
+			bestDouble = (dataType == 0x08) ? p.getFloat(pos) : p.getDouble(pos);
+		else if ((dataType & 0xFF) < 0x0C)
+			bestLong = getLong(p, pos, dataType);
+	}
+
+	/**
+	 * The value of the aggregate over the rows added, formatted as SELECT shows
+	 * values.
+	 */
+	public String getResult() throws Exception {
+		switch (function) {
+		case COUNT_ALL:
+		case COUNT:
+			return Long.toString(count);
+		case SUM:
+			if (count == 0)
+				return "null";
+			return isReal ? String.valueOf(doubleSum + longSum) : Long.toString(longSum);
+		case AVG:
+			if (count == 0)
+				return "null";
+			return String.valueOf((isReal ? doubleSum + longSum : (double) longSum) / count);
+		default:
+			if (best == null)
+				return "null";
+			PayLoad value = new PayLoad();
+			value.setDataTypes(new byte[] { bestType });
+			value.setValues(best);
+			return value.getData()[0];
+		}
+	}
+}
@@ -0,0 +1,365 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process wide cache of table pages. Pages are looked up by (file, page number),
+ * evicted in least recently used order once the memory budget is exceeded and
+ * written back to their file only when they are dirty.
+ *
+ * The budget is given in bytes through the davisbase.bufferpool.size system
+ * property and defaults to 4 MB. However small the budget, the most recently
+ * used pages stay resident, so a caller can keep using a page while it touches
+ * a few others.
+ *
+ * Changed pages go through the WriteAheadLog. commit() logs the pages changed
+ * since the last commit, and rollback() gives them back the images they had
+ * before, for a statement that failed part way. A dirty page is written to its
+ * file only after its image in the log is synced. Pages a statement has changed
+ * but not committed are never evicted, so a statement touching more pages than
+ * the budget holds grows the pool until it commits. Once the log is larger than
+ * the davisbase.wal.checkpoint system property, 8 MB by default, a commit
+ * writes all dirty pages to their files and empties the log. A page a statement
+ * is still changing is written as it was before that statement changed it.
+ *
+ * Statements run on threads of their own. Each commit logs the pages changed by
+ * the statement on its thread, and a statement pins the pages it changes until
+ * it commits, so the page objects it changes stay the ones the pool serves.
+ * Pages it only reads can be evicted.
+ */
+public class BufferPool {
+
+	private static final long DEFAULT_CAPACITY = 4L * 1024 * 1024;
+	private static final int MIN_RESIDENT_PAGES = 16;
+	private static final long DEFAULT_CHECKPOINT_SIZE = 8L * 1024 * 1024;
+	private static final BufferPool instance = new BufferPool(
+			Long.getLong("davisbase.bufferpool.size", DEFAULT_CAPACITY));
+
+	private final long capacity;
+	private long usedBytes = 0;
+	// access ordered, so the first entry is always the least recently used page
+	private final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(256, 0.75f, true);
+	private final Map<String, Integer> fileIds = new HashMap<>();
+	// files written to since they were last synced
+	private final Set<PageFile> unsynced = new HashSet<>();
+	private final WriteAheadLog wal = WriteAheadLog.getInstance();
+	private final long checkpointSize = Long.getLong("davisbase.wal.checkpoint", DEFAULT_CHECKPOINT_SIZE);
+	// pages changed by the statement running on the thread
+	private final ThreadLocal<Set<Page>> changedPages = new ThreadLocal<Set<Page>>() {
+		@Override
+		protected Set<Page> initialValue() {
+			return Collections.newSetFromMap(new IdentityHashMap<Page, Boolean>());
+		}
+	};
+	// set once the statement running on the thread failed
+	private final ThreadLocal<Boolean> failed = new ThreadLocal<>();
+	// pages pinned by the statement running on the thread, null until it changes
+	// one
+	private final ThreadLocal<Set<Page>> pinnedPages = new ThreadLocal<>();
+
+	public BufferPool(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the id under which pages of the given file are cached. Every
+	 * PageFile opened on the same path shares the same id and hence the same
+	 * cached pages.
+	 */
+	public synchronized int getFileId(String fileName) throws IOException {
+		String path = new File(fileName).getCanonicalPath();
+		Integer id = fileIds.get(path);
+		if (id == null) {
+			id = fileIds.size() + 1;
+			fileIds.put(path, id);
+		}
+		return id;
+	}
+
+	public synchronized Page getPage(PageFile file, int pageNumber) throws IOException {
+		Long key = key(file.getFileId(), pageNumber);
+		Page page = pages.get(key);
+		if (page == null) {
+			page = file.readPage(pageNumber);
+			admit(key, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Returns the page if it is cached, without reading it otherwise.
+	 */
+	public synchronized Page getCachedPage(PageFile file, int pageNumber) {
+		return pages.get(key(file.getFileId(), pageNumber));
+	}
+
+	/**
+	 * Caches a zero filled page for a page that was just appended to the file,
+	 * so it does not have to be read back.
+	 */
+	public synchronized Page newPage(PageFile file, int pageNumber) throws IOException {
+		Page page = new Page(file, pageNumber, ByteBuffer.allocate(file.getPageSize()));
+		Long key = key(file.getFileId(), pageNumber);
+		Page old = pages.remove(key);
+		if (old != null)
+			usedBytes -= old.getSize();
+		admit(key, page);
+		return page;
+	}
+
+	/**
+	 * Notes a page the statement running on this thread is about to change,
+	 * keeping its image so the change can be rolled back, and pins it until the
+	 * statement ends. A page evicted while the statement held on to it takes the
+	 * place of the copy read since, which holds the same data as long as nothing
+	 * changed that copy.
+	 */
+	synchronized void changed(Page page) {
+		Long key = key(page.getFile().getFileId(), page.getPageNumber());
+		Page cached = pages.get(key);
+		if (cached != page) {
+			if (cached != null) {
+				if (cached.isUnlogged())
+					throw new IllegalStateException("Page " + page.getPageNumber() + " of "
+							+ page.getFile().getFileName() + " is changed through a copy evicted before.");
+				usedBytes -= cached.getSize();
+			}
+			pages.put(key, page);
+			usedBytes += page.getSize();
+		}
+		page.saveImage();
+		changedPages.get().add(page);
+		Set<Page> pinned = pinnedPages.get();
+		if (pinned == null) {
+			pinned = Collections.newSetFromMap(new IdentityHashMap<Page, Boolean>());
+			pinnedPages.set(pinned);
+		}
+		if (pinned.add(page))
+			page.pin();
+	}
+
+	/**
+	 * Marks the statement running on this thread as failed, so it is rolled back
+	 * instead of committed when it ends.
+	 */
+	public void fail() {
+		failed.set(Boolean.TRUE);
+	}
+
+	public boolean hasFailed() {
+		return failed.get() != null;
+	}
+
+	/**
+	 * Writes every dirty page of the given file back to disk.
+	 */
+	public synchronized void flush(PageFile file) throws IOException {
+		for (Page page : pages.values())
+			if (page.getFile().getFileId() == file.getFileId())
+				writeBack(page);
+	}
+
+	/**
+	 * Ends the statement running on this thread by logging the pages it changed
+	 * and unpinning the pages it pinned. Returns once the commit is as durable as
+	 * the WriteAheadLog sync interval makes it.
+	 */
+	public void commit() throws IOException {
+		Set<Page> changed = changedPages.get();
+		long lsn = 0;
+		synchronized (this) {
+			List<Page> logged = new ArrayList<>();
+			for (Page page : changed)
+				if (page.isUnlogged())
+					logged.add(page);
+			if (!logged.isEmpty()) {
+				lsn = wal.commit(logged);
+				for (Page page : logged)
+					page.setUnlogged(false);
+			}
+			for (Page page : changed)
+				page.dropSavedImage();
+			changed.clear();
+			unpinAll();
+			if (lsn != 0 && wal.size() >= checkpointSize)
+				checkpoint();
+		}
+		if (lsn != 0)
+			wal.awaitCommit(lsn);
+	}
+
+	/**
+	 * Ends the statement running on this thread without logging its changes. The
+	 * pages it changed get back their images from before it changed them, and
+	 * the pages it pinned are unpinned.
+	 */
+	public void rollback() {
+		Set<Page> changed = changedPages.get();
+		synchronized (this) {
+			for (Page page : changed) {
+				if (page.isUnlogged())
+					page.restore();
+				else
+					page.dropSavedImage();
+			}
+			changed.clear();
+			unpinAll();
+		}
+		failed.remove();
+	}
+
+	private void unpinAll() {
+		Set<Page> pinned = pinnedPages.get();
+		if (pinned != null) {
+			for (Page page : pinned)
+				page.unpin();
+			pinnedPages.remove();
+		}
+	}
+
+	/**
+	 * Writes every dirty page to its file, as last committed, and syncs the files
+	 * written to, so the log can be emptied. A page a statement is changing is
+	 * written with the image saved before that statement changed it, which its
+	 * last image in the log holds too, and stays dirty.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		for (Page page : pages.values()) {
+			if (!page.isUnlogged() && !page.isPinned()) {
+				writeBack(page);
+			} else if (page.isDirty() && page.getSavedImage() != null) {
+				wal.sync(page.getLsn());
+				page.getFile().writePage(page.getPageNumber(), ByteBuffer.wrap(page.getSavedImage()));
+				unsynced.add(page.getFile());
+			}
+		}
+		for (PageFile file : unsynced)
+			file.sync();
+		unsynced.clear();
+		wal.truncate();
+	}
+
+	/**
+	 * Flushes and forgets the pages that were loaded through the given file, used
+	 * before the file is closed. The file is synced, as a checkpoint can no longer
+	 * reach it.
+	 */
+	public synchronized void release(PageFile file) throws IOException {
+		Iterator<Page> it = pages.values().iterator();
+		while (it.hasNext()) {
+			Page page = it.next();
+			if (page.getFile() == file) {
+				writeBack(page);
+				usedBytes -= page.getSize();
+				it.remove();
+			}
+		}
+		if (unsynced.remove(file))
+			file.sync();
+	}
+
+	/**
+	 * Forgets all pages of a file without writing them, used when the file is
+	 * deleted or recreated.
+	 */
+	public synchronized void discard(String fileName) throws IOException {
+		int fileId = getFileId(fileName);
+		wal.reset(fileName);
+		Iterator<Page> it = pages.values().iterator();
+		while (it.hasNext()) {
+			Page page = it.next();
+			if (page.getFile().getFileId() == fileId) {
+				usedBytes -= page.getSize();
+				page.setDirty(false);
+				page.setUnlogged(false);
+				it.remove();
+			}
+		}
+		Iterator<PageFile> files = unsynced.iterator();
+		while (files.hasNext())
+			if (files.next().getFileId() == fileId)
+				files.remove();
+	}
+
+	/**
+	 * Forgets the pages of a file past pageCount without writing them, used before
+	 * the file is cut back to pageCount pages, then checkpoints. The commit that
+	 * stopped using those pages is then in the files, and the log no longer holds
+	 * images of them that recovery would write back past the end of the file.
+	 */
+	public synchronized void truncate(PageFile file, int pageCount) throws IOException {
+		Iterator<Page> it = pages.values().iterator();
+		while (it.hasNext()) {
+			Page page = it.next();
+			if (page.getFile().getFileId() == file.getFileId() && page.getPageNumber() > pageCount) {
+				usedBytes -= page.getSize();
+				page.setDirty(false);
+				page.setUnlogged(false);
+				it.remove();
+			}
+		}
+		checkpoint();
+	}
+
+	private void admit(Long key, Page page) throws IOException {
+		evict(page.getSize());
+		pages.put(key, page);
+		usedBytes += page.getSize();
+	}
+
+	private void evict(int needed) throws IOException {
+		if (usedBytes + needed <= capacity)
+			return;
+		List<Long> victims = new ArrayList<>();
+		long freed = 0;
+		for (Map.Entry<Long, Page> entry : pages.entrySet()) {
+			if (usedBytes - freed + needed <= capacity || pages.size() - victims.size() <= MIN_RESIDENT_PAGES)
+				break;
+			if (entry.getValue().isUnlogged() || entry.getValue().isPinned())
+				continue;
+			writeBack(entry.getValue());
+			freed += entry.getValue().getSize();
+			victims.add(entry.getKey());
+		}
+		for (Long key : victims)
+			pages.remove(key);
+		usedBytes -= freed;
+	}
+
+	/**
+	 * Writes a dirty page to its file once its image in the log is synced. A page
+	 * with changes that were not committed, written because its file is closed,
+	 * is logged first.
+	 */
+	private void writeBack(Page page) throws IOException {
+		if (page.isDirty()) {
+			wal.sync(page.isUnlogged() ? wal.log(page) : page.getLsn());
+			page.getFile().writePage(page);
+			page.setDirty(false);
+			page.setUnlogged(false);
+			unsynced.add(page.getFile());
+		}
+	}
+
+	private static Long key(int fileId, int pageNumber) {
+		return ((long) fileId << 32) | (pageNumber & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of table schemas. davisbase_columns is read once, when
+ * Stub.InitTable loads the catalog, and a table is looked up again only after
+ * CREATE TABLE or DROP TABLE invalidated its entry. The schemas of the two meta
+ * tables are fixed and never read from disk.
+ */
+public class Catalog {
+
+	private static final Catalog instance = new Catalog();
+	private static final TableSchema DAVISBASE_TABLES = new TableSchema(Arrays.asList(
+			new ColumnData("row_id", "int", 1, false),
+			new ColumnData("table_name", "text", 2, false)));
+	private static final TableSchema DAVISBASE_COLUMNS = new TableSchema(Arrays.asList(
+			new ColumnData("row_id", "int", 1, false),
+			new ColumnData("table_name", "text", 2, false),
+			new ColumnData("column_name", "text", 3, false),
+			new ColumnData("data_type", "text", 4, false),
+			new ColumnData("ordinal_position", "tinyint", 5, false),
+			new ColumnData("is_nullable", "text", 6, false)));
+
+	private final Map<String, TableSchema> schemas = new HashMap<>();
+
+	public static Catalog getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Reads the schemas of all user tables in one scan of davisbase_columns.
+	 */
+	public void load() throws Exception {
+		Map<String, List<ColumnData>> columns = new HashMap<>();
+		for (Cell cell : readColumns(new String[0]).values()) {
+			String[] data = cell.getPayload().getData();
+			List<ColumnData> tableColumns = columns.get(data[0]);
+			if (tableColumns == null) {
+				tableColumns = new ArrayList<>();
+				columns.put(data[0], tableColumns);
+			}
+			tableColumns.add(toColumnData(data));
+		}
+		synchronized (this) {
+			schemas.clear();
+			for (Map.Entry<String, List<ColumnData>> table : columns.entrySet())
+				schemas.put(table.getKey(), new TableSchema(table.getValue()));
+		}
+	}
+
+	/**
+	 * The schema of the table, read from davisbase_columns if it is not cached.
+	 * A table with no columns recorded gets an empty schema, which is not cached.
+	 * The lock is not held while davisbase_columns is read, as that acquires the
+	 * meta table from the TableRegistry.
+	 */
+	public TableSchema getSchema(String tableName) throws Exception {
+		if (tableName.equalsIgnoreCase("davisbase_tables"))
+			return DAVISBASE_TABLES;
+		if (tableName.equalsIgnoreCase("davisbase_columns"))
+			return DAVISBASE_COLUMNS;
+		synchronized (this) {
+			TableSchema schema = schemas.get(tableName);
+			if (schema != null)
+				return schema;
+		}
+		List<ColumnData> tableColumns = new ArrayList<>();
+		for (Cell cell : readColumns(new String[] { "table_name", "=", tableName }).values())
+			tableColumns.add(toColumnData(cell.getPayload().getData()));
+		TableSchema schema = new TableSchema(tableColumns);
+		if (!tableColumns.isEmpty()) {
+			synchronized (this) {
+				schemas.put(tableName, schema);
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * Forgets the cached schema of a table whose rows in davisbase_columns were
+	 * added or removed.
+	 */
+	public synchronized void invalidate(String tableName) {
+		schemas.remove(tableName);
+	}
+
+	private static Map<Integer, Cell> readColumns(String[] condition) throws Exception {
+		Table metaTable = TableRegistry.getInstance().acquire("data/catalog", "davisbase_columns");
+		metaTable.latchShared();
+		try {
+			return metaTable.selectRecords(new String[] { "*" }, condition);
+		} finally {
+			metaTable.unlatchShared();
+			TableRegistry.getInstance().release("data/catalog", "davisbase_columns");
+		}
+	}
+
+	private static ColumnData toColumnData(String[] data) {
+		// table_name, column_name, data_type, ordinal_position, is_nullable
+		return new ColumnData(data[1], data[2], Integer.parseInt(data[3]), data[4].equalsIgnoreCase("yes"));
+	}
+}
@@ -1,12 +1,12 @@
 public class Cell {
 
-	private short location;
+	private int location;
 
-	public short getLocation() {
+	public int getLocation() {
 		return location;
 	}
 
-	public void setLocation(short location) {
+	public void setLocation(int location) {
 		this.location = location;
 	}
 
@@ -50,7 +50,7 @@ public class Cell {
 		this.payload = payload;
 	}
 
-	public Cell(short location, int page) {
+	public Cell(int location, int page) {
 		this.location = location;
 		pageNumber = page;
 	}
@@ -0,0 +1,46 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * Prompt for a DavisBase server, "java Client [host] [port]". Statements are
+ * typed as at the prompt of Start and the answer of the server printed as it
+ * arrives, up to the line holding a single dot that ends it.
+ */
+public class Client {
+
+	static String prompt = "davisql> ";
+
+	public static void main(String[] args) {
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_PORT;
+
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			OutputStream request = socket.getOutputStream();
+			BufferedReader answer = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			Scanner scanner = new Scanner(System.in).useDelimiter(";");
+
+			while (true) {
+				System.out.print(prompt);
+				if (!scanner.hasNext())
+					break;
+				String userCommand = scanner.next().replace("\n", " ").replace("\r", "").trim();
+				request.write((userCommand + ";\n").getBytes(StandardCharsets.ISO_8859_1));
+				request.flush();
+
+				String line;
+				while ((line = answer.readLine()) != null && !line.equals("."))
+					System.out.println(line.startsWith(".") ? line.substring(1) : line);
+				if (line == null || userCommand.equalsIgnoreCase("exit") || userCommand.equalsIgnoreCase("quit"))
+					break;
+			}
+		} catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+		}
+	}
+}
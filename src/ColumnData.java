@@ -1,11 +1,10 @@
 import java.util.Comparator;
 
 public class ColumnData {
-    public String column_name;
-    public String data_type;
-    public int ordinal_position;
-    public boolean is_nullable;
-    public Object value;
+    public final String column_name;
+    public final String data_type;
+    public final int ordinal_position;
+    public final boolean is_nullable;
 
     public ColumnData(String column_name, String data_type, int ordinal_position, boolean is_nullable){
         this.column_name = column_name;
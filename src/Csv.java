@@ -0,0 +1,89 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records of comma separated values, as COPY reads and writes them. A field
+ * holding a comma, a double quote, a line break or blanks at either end is
+ * written in double quotes, in which a double quote is doubled. A quoted field
+ * may go on over several lines.
+ */
+public class Csv {
+
+	/**
+	 * The fields of the next record, or null at the end of the input. Empty lines
+	 * are skipped.
+	 */
+	public static String[] readRecord(BufferedReader in) throws IOException {
+		String line = in.readLine();
+		while (line != null && line.isEmpty())
+			line = in.readLine();
+		if (line == null)
+			return null;
+
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		int i = 0;
+		while (true) {
+			if (i < line.length() && line.charAt(i) == '"') {
+				i++;
+				while (true) {
+					if (i == line.length()) {
+						line = in.readLine();
+						if (line == null)
+							throw new IOException("A quoted field is not closed at the end of the file.");
+						field.append('\n');
+						i = 0;
+						continue;
+					}
+					char c = line.charAt(i++);
+					if (c != '"')
+						field.append(c);
+					else if (i < line.length() && line.charAt(i) == '"') {
+						field.append('"');
+						i++;
+					} else
+						break;
+				}
+			}
+			int comma = line.indexOf(',', i);
+			int end = (comma == -1) ? line.length() : comma;
+			field.append(line, i, end);
+			fields.add(field.toString());
+			field.setLength(0);
+			if (comma == -1)
+				return fields.toArray(new String[fields.size()]);
+			i = comma + 1;
+		}
+	}
+
+	public static void writeRecord(Writer out, String[] fields) throws IOException {
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				out.write(',');
+			String field = fields[i];
+			if (needsQuotes(field)) {
+				out.write('"');
+				out.write(field.replace("\"", "\"\""));
+				out.write('"');
+			} else
+				out.write(field);
+		}
+		out.write('\n');
+	}
+
+	private static boolean needsQuotes(String field) {
+		if (field.isEmpty())
+			return false;
+		if (Character.isWhitespace(field.charAt(0)) || Character.isWhitespace(field.charAt(field.length() - 1)))
+			return true;
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r')
+				return true;
+		}
+		return false;
+	}
+}
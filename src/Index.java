@@ -0,0 +1,509 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Secondary index on one column of a table, kept next to the table file in
+ * <table>.<column>.ndx. The file is a B+tree of (column value, row_id) entries,
+ * so rows sharing a value are still told apart and an entry can be removed
+ * exactly. Pages are laid out like the table pages, index leaves have type 0x0A
+ * and interior pages 0x02.
+ *
+ * Leaf cells hold row_id (4) followed by the key, interior cells the child page
+ * (4), row_id (4) and key of the largest entry under that child. The child with
+ * entries above every cell is the rightmost one, kept in the next page field.
+ * Integer, date and datetime columns are keyed by a long, real and double
+ * columns by a double and text columns by a 2 byte length and the text. Values
+ * compare the way a table scan compares them, reals at float precision and
+ * dates as stored, and null values are not indexed.
+ */
+public class Index {
+	private static final byte INTEGER_KEY = 1;
+	private static final byte DOUBLE_KEY = 2;
+	private static final byte TEXT_KEY = 3;
+	private static final byte REAL_KEY = 4;
+	private static final byte DATETIME_KEY = 5;
+	private static final byte DATE_KEY = 6;
+	private static final byte LEAF = 0x0A;
+	private static final byte INTERIOR = 0x02;
+	// page header, same as the table pages
+	private static final int CELL_COUNT = 2;
+	private static final int CONTENT_START = 4;
+	private static final int NEXT_PAGE = 8;
+	private static final int PAGE_HEADER_SIZE = 12;
+	// index header, kept in page 0 after the fields PageFile owns: root page (4),
+	// key type (1)
+	private static final int ROOT_PAGE = 16;
+	private static final int KEY_TYPE = 20;
+
+	private final String columnName;
+	private final PageFile indexFile;
+	private final int pageSize;
+	private final byte keyType;
+
+	private static class Entry implements Comparable<Entry> {
+		final Object key;
+		final int rowId;
+
+		Entry(Object key, int rowId) {
+			this.key = key;
+			this.rowId = rowId;
+		}
+
+		int compareKey(Object other) {
+			if (key instanceof Long)
+				return Long.compare((Long) key, (Long) other);
+			if (key instanceof Double)
+				return Double.compare((Double) key, (Double) other);
+			return ((String) key).compareToIgnoreCase((String) other);
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int result = compareKey(other.key);
+			return (result != 0) ? result : Integer.compare(rowId, other.rowId);
+		}
+	}
+
+	public static String fileName(String path, String tableName, String columnName) {
+		return path + "/" + tableName + "." + columnName + ".ndx";
+	}
+
+	public static boolean exists(String path, String tableName, String columnName) {
+		return new File(fileName(path, tableName, columnName)).exists();
+	}
+
+	/**
+	 * Creates an empty index for a column of the given data type.
+	 */
+	public static Index create(String path, String tableName, String columnName, String dataType, int pageSize)
+			throws Exception {
+		byte keyType = getKeyType(dataType);
+		if (keyType == 0)
+			throw new Exception("Can not index columns of type " + dataType.trim() + ".");
+		PageFile file = PageFile.create(fileName(path, tableName, columnName), pageSize);
+		int root = file.allocatePage();
+		setHeaders(file.getPage(root), LEAF);
+		Page header = file.getPage(0);
+		header.putInt(ROOT_PAGE, root);
+		header.putByte(KEY_TYPE, keyType);
+		return new Index(columnName, file);
+	}
+
+	public static Index open(String path, String tableName, String columnName) throws IOException {
+		return new Index(columnName, PageFile.open(fileName(path, tableName, columnName)));
+	}
+
+	private Index(String columnName, PageFile indexFile) throws IOException {
+		this.columnName = columnName;
+		this.indexFile = indexFile;
+		this.pageSize = indexFile.getPageSize();
+		this.keyType = indexFile.getPage(0).getByte(KEY_TYPE);
+	}
+
+	private static byte getKeyType(String dataType) {
+		switch (dataType.trim()) {
+		case "tinyint":
+		case "smallint":
+		case "int":
+		case "bigint":
+			return INTEGER_KEY;
+		case "real":
+			return REAL_KEY;
+		case "double":
+			return DOUBLE_KEY;
+		case "datetime":
+			return DATETIME_KEY;
+		case "date":
+			return DATE_KEY;
+		case "text":
+			return TEXT_KEY;
+		default:
+			return 0;
+		}
+	}
+
+	public String getColumnName() {
+		return columnName;
+	}
+
+	/**
+	 * Tells whether search can answer the operator. Text is only compared for
+	 * equality.
+	 */
+	public boolean supports(String operator) {
+		switch (operator) {
+		case "=":
+			return true;
+		case "<":
+		case "<=":
+		case ">":
+		case ">=":
+			return keyType != TEXT_KEY;
+		default:
+			return false;
+		}
+	}
+
+	public void insert(byte serialType, String value, int rowId) throws IOException {
+		if (serialType >= 0x00 && serialType <= 0x03)
+			return;
+		Entry entry = new Entry(parseKey(value), rowId);
+		List<Integer> path = findPath(entry);
+		int leaf = path.get(path.size() - 1);
+		Page p = indexFile.getPage(leaf);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		int size = 4 + keySize(entry.key);
+		int top = p.getInt(CONTENT_START);
+
+		if (top - size < PAGE_HEADER_SIZE + ((count + 1) * 2)) {
+			// rewrite the leaf compactly, splitting it when that is not enough
+			List<Entry> entries = readLeaf(leaf);
+			entries.add(findPosition(entries, entry), entry);
+			if (leafSize(entries, 0, entries.size()) <= pageSize - PAGE_HEADER_SIZE) {
+				writeLeaf(leaf, entries, 0, entries.size());
+				return;
+			}
+			int newPage = indexFile.allocatePage();
+			setHeaders(indexFile.getPage(newPage), LEAF);
+			indexFile.getPage(newPage).putInt(NEXT_PAGE, p.getInt(NEXT_PAGE));
+			p.putInt(NEXT_PAGE, newPage);
+			int half = entries.size() / 2;
+			writeLeaf(leaf, entries, 0, half);
+			writeLeaf(newPage, entries, half, entries.size());
+			insertToParent(path, path.size() - 2, leaf, entries.get(half - 1), newPage);
+			return;
+		}
+
+		int index = findCellIndex(p, entry);
+		top -= size;
+		putEntry(p, top, entry);
+		for (int i = count; i > index; i--)
+			p.putShort(PAGE_HEADER_SIZE + (i * 2), p.getShort(PAGE_HEADER_SIZE + ((i - 1) * 2)));
+		p.putShort(PAGE_HEADER_SIZE + (index * 2), top);
+		p.putShort(CELL_COUNT, count + 1);
+		p.putInt(CONTENT_START, top);
+	}
+
+	/**
+	 * Removes the entry of the row, if there is one. Like table rows, the cell
+	 * space is only reclaimed the next time the leaf is rewritten.
+	 */
+	public void delete(byte serialType, String value, int rowId) throws IOException {
+		if (serialType >= 0x00 && serialType <= 0x03)
+			return;
+		Entry entry = new Entry(parseKey(value), rowId);
+		int leaf = findLeafPage(entry);
+		Page p = indexFile.getPage(leaf);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		int index = findCellIndex(p, entry);
+		if (index == count || readEntry(p, p.getShort(PAGE_HEADER_SIZE + (index * 2)) & 0xFFFF).compareTo(entry) != 0)
+			return;
+		for (int i = index; i < count - 1; i++)
+			p.putShort(PAGE_HEADER_SIZE + (i * 2), p.getShort(PAGE_HEADER_SIZE + ((i + 1) * 2)));
+		p.putShort(PAGE_HEADER_SIZE + ((count - 1) * 2), 0);
+		p.putShort(CELL_COUNT, count - 1);
+	}
+
+	/**
+	 * Row_ids of the rows whose value satisfies "value operator operand", in the
+	 * order of their values. The scan starts at the leaf of the lower bound and
+	 * stops at the first entry past the upper bound.
+	 */
+	public List<Integer> search(String operator, String operand) throws Exception {
+		Object key = parseKey(operand);
+		int page;
+		switch (operator) {
+		case "=":
+		case ">=":
+			page = findLeafPage(new Entry(key, Integer.MIN_VALUE));
+			break;
+		case ">":
+			page = findLeafPage(new Entry(key, Integer.MAX_VALUE));
+			break;
+		case "<":
+		case "<=":
+			page = findLeafPage(null);
+			break;
+		default:
+			throw new Exception("Unknown comparision operation '" + operator + "'.");
+		}
+
+		List<Integer> rowIds = new ArrayList<>();
+		while (page != 0xFFFFFFFF) {
+			for (Entry entry : readLeaf(page)) {
+				int result = entry.compareKey(key);
+				switch (operator) {
+				case "=":
+					if (result > 0)
+						return rowIds;
+					if (result == 0)
+						rowIds.add(entry.rowId);
+					break;
+				case ">":
+					if (result > 0)
+						rowIds.add(entry.rowId);
+					break;
+				case ">=":
+					if (result >= 0)
+						rowIds.add(entry.rowId);
+					break;
+				case "<":
+					if (result >= 0)
+						return rowIds;
+					rowIds.add(entry.rowId);
+					break;
+				case "<=":
+					if (result > 0)
+						return rowIds;
+					rowIds.add(entry.rowId);
+					break;
+				}
+			}
+			page = indexFile.getPage(page).getInt(NEXT_PAGE);
+		}
+		return rowIds;
+	}
+
+	public void close() throws IOException {
+		indexFile.close();
+	}
+
+	private Object parseKey(String value) {
+		switch (keyType) {
+		case INTEGER_KEY:
+			return Long.parseLong(value);
+		case DOUBLE_KEY:
+			return Double.parseDouble(value);
+		case REAL_KEY:
+			return (double) (float) Double.parseDouble(value);
+		case DATETIME_KEY:
+			return PayLoad.parseDate((byte) 0x0A, value);
+		case DATE_KEY:
+			return PayLoad.parseDate((byte) 0x0B, value);
+		default:
+			return value;
+		}
+	}
+
+	private int keySize(Object key) {
+		if (key instanceof String)
+			return 2 + ((String) key).getBytes(StandardCharsets.ISO_8859_1).length;
+		return 8;
+	}
+
+	private Object readKey(Page p, int pos) {
+		switch (keyType) {
+		case INTEGER_KEY:
+		case DATETIME_KEY:
+		case DATE_KEY:
+			return p.getLong(pos);
+		case DOUBLE_KEY:
+		case REAL_KEY:
+			return p.getDouble(pos);
+		default:
+			byte[] bytes = new byte[p.getShort(pos) & 0xFFFF];
+			p.getBytes(pos + 2, bytes);
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private void putKey(Page p, int pos, Object key) {
+		if (key instanceof Long)
+			p.putLong(pos, (Long) key);
+		else if (key instanceof Double)
+			p.putDouble(pos, (Double) key);
+		else {
+			byte[] bytes = ((String) key).getBytes(StandardCharsets.ISO_8859_1);
+			p.putShort(pos, bytes.length);
+			p.putBytes(pos + 2, bytes);
+		}
+	}
+
+	private Entry readEntry(Page p, int pos) {
+		return new Entry(readKey(p, pos + 4), p.getInt(pos));
+	}
+
+	private void putEntry(Page p, int pos, Entry entry) {
+		p.putInt(pos, entry.rowId);
+		putKey(p, pos + 4, entry.key);
+	}
+
+	private static void setHeaders(Page p, byte pageType) {
+		p.putByte(0, pageType);
+		p.putShort(CELL_COUNT, 0);
+		p.putInt(CONTENT_START, p.getSize());
+		p.putInt(NEXT_PAGE, 0xFFFFFFFF);
+	}
+
+	private static int findPosition(List<Entry> entries, Entry entry) {
+		int low = 0;
+		int high = entries.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries.get(mid).compareTo(entry) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Index of the first cell of a leaf whose entry is not below the given one.
+	 */
+	private int findCellIndex(Page p, Entry entry) {
+		int low = 0;
+		int high = p.getShort(CELL_COUNT) & 0xFFFF;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (readEntry(p, p.getShort(PAGE_HEADER_SIZE + (mid * 2)) & 0xFFFF).compareTo(entry) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private List<Entry> readLeaf(int page) throws IOException {
+		Page p = indexFile.getPage(page);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		List<Entry> entries = new ArrayList<>(count + 1);
+		for (int i = 0; i < count; i++)
+			entries.add(readEntry(p, p.getShort(PAGE_HEADER_SIZE + (i * 2)) & 0xFFFF));
+		return entries;
+	}
+
+	private int leafSize(List<Entry> entries, int from, int to) {
+		int size = 0;
+		for (int i = from; i < to; i++)
+			size += 2 + 4 + keySize(entries.get(i).key);
+		return size;
+	}
+
+	private void writeLeaf(int page, List<Entry> entries, int from, int to) throws IOException {
+		Page p = indexFile.getPage(page);
+		int top = pageSize;
+		for (int i = from; i < to; i++) {
+			top -= 4 + keySize(entries.get(i).key);
+			putEntry(p, top, entries.get(i));
+			p.putShort(PAGE_HEADER_SIZE + ((i - from) * 2), top);
+		}
+		p.putShort(CELL_COUNT, to - from);
+		p.putInt(CONTENT_START, top);
+	}
+
+	/**
+	 * Pages visited descending from the root to the leaf of the entry, root first.
+	 */
+	private List<Integer> findPath(Entry entry) throws IOException {
+		List<Integer> path = new ArrayList<>();
+		int page = indexFile.getPage(0).getInt(ROOT_PAGE);
+		path.add(page);
+		while (indexFile.getPage(page).getByte(0) == INTERIOR) {
+			page = findChildPage(page, entry);
+			path.add(page);
+		}
+		return path;
+	}
+
+	/**
+	 * Descends to the leaf that holds the entry, or would hold it. A null entry
+	 * sorts before every other one.
+	 */
+	private int findLeafPage(Entry entry) throws IOException {
+		int page = indexFile.getPage(0).getInt(ROOT_PAGE);
+		while (indexFile.getPage(page).getByte(0) == INTERIOR)
+			page = findChildPage(page, entry);
+		return page;
+	}
+
+	private int findChildPage(int page, Entry entry) throws IOException {
+		Page p = indexFile.getPage(page);
+		int low = 0;
+		int high = (p.getShort(CELL_COUNT) & 0xFFFF) - 1;
+		int child = p.getInt(NEXT_PAGE);
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cellLoc = p.getShort(PAGE_HEADER_SIZE + (mid * 2)) & 0xFFFF;
+			if (entry == null || readEntry(p, cellLoc + 4).compareTo(entry) >= 0) {
+				child = p.getInt(cellLoc);
+				high = mid - 1;
+			} else
+				low = mid + 1;
+		}
+		return child;
+	}
+
+	/**
+	 * Registers in the interior page at the given level of the path that page left
+	 * was split into left, holding entries up to key, and right. A full interior
+	 * page is split around its middle cell, whose key moves up a level, and a
+	 * split of the root grows a new root above it.
+	 */
+	private void insertToParent(List<Integer> path, int level, int left, Entry key, int right) throws IOException {
+		if (level < 0) {
+			int root = indexFile.allocatePage();
+			Page p = indexFile.getPage(root);
+			setHeaders(p, INTERIOR);
+			List<Integer> children = new ArrayList<>();
+			List<Entry> keys = new ArrayList<>();
+			children.add(left);
+			keys.add(key);
+			writeInterior(root, children, keys, 0, 1, right);
+			indexFile.getPage(0).putInt(ROOT_PAGE, root);
+			return;
+		}
+
+		int parent = path.get(level);
+		Page p = indexFile.getPage(parent);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		List<Integer> children = new ArrayList<>(count + 1);
+		List<Entry> keys = new ArrayList<>(count + 1);
+		for (int i = 0; i < count; i++) {
+			int cellLoc = p.getShort(PAGE_HEADER_SIZE + (i * 2)) & 0xFFFF;
+			children.add(p.getInt(cellLoc));
+			keys.add(readEntry(p, cellLoc + 4));
+		}
+		int rightmost = p.getInt(NEXT_PAGE);
+		int index = children.indexOf(left);
+		if (index == -1) {
+			index = count;
+			rightmost = right;
+		} else
+			children.set(index, right);
+		children.add(index, left);
+		keys.add(index, key);
+
+		int size = 0;
+		for (Entry k : keys)
+			size += 2 + 4 + 4 + keySize(k.key);
+		if (size <= pageSize - PAGE_HEADER_SIZE) {
+			writeInterior(parent, children, keys, 0, keys.size(), rightmost);
+			return;
+		}
+		int middle = keys.size() / 2;
+		int newPage = indexFile.allocatePage();
+		writeInterior(parent, children, keys, 0, middle, children.get(middle));
+		writeInterior(newPage, children, keys, middle + 1, keys.size(), rightmost);
+		insertToParent(path, level - 1, parent, keys.get(middle), newPage);
+	}
+
+	private void writeInterior(int page, List<Integer> children, List<Entry> keys, int from, int to, int rightmost)
+			throws IOException {
+		Page p = indexFile.getPage(page);
+		setHeaders(p, INTERIOR);
+		int top = pageSize;
+		for (int i = from; i < to; i++) {
+			top -= 4 + 4 + keySize(keys.get(i).key);
+			p.putInt(top, children.get(i));
+			putEntry(p, top + 4, keys.get(i));
+			p.putShort(PAGE_HEADER_SIZE + ((i - from) * 2), top);
+		}
+		p.putShort(CELL_COUNT, to - from);
+		p.putInt(CONTENT_START, top);
+		p.putInt(NEXT_PAGE, rightmost);
+	}
+}
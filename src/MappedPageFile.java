@@ -0,0 +1,126 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageFile that maps the whole table file into memory and hands out pages that
+ * are views on the mapping, so reads and writes of page fields are plain memory
+ * accesses with no system call and no BufferPool copy.
+ *
+ * The file is mapped in chunks of up to CHUNK_SIZE bytes, as a single mapping
+ * can not go past 2 GB, and the mapping, file header included, grows
+ * CHUNK_PAGES pages at a time. Mapping past the end of a file extends it, so
+ * the number of pages in use is tracked separately and the file is cut back to
+ * it on close.
+ */
+public class MappedPageFile extends PageFile {
+
+	private static final int CHUNK_PAGES = 64;
+	private static final long CHUNK_SIZE = 64L << 20;
+
+	// pages in each chunk, a chunk holds whole pages
+	private final int chunkPages;
+	private final List<MappedByteBuffer> chunks = new ArrayList<>();
+	private Page[] pages = new Page[0];
+	private int pageCount;
+
+	protected MappedPageFile(String fileName, int pageSize) throws IOException {
+		super(fileName, pageSize);
+		chunkPages = (int) (CHUNK_SIZE / pageSize);
+		pageCount = (int) (file.length() / pageSize) - 1;
+		remap(pageCount + 1);
+		// pages past the last initialized one are left over from a chunk that was
+		// mapped but never used
+		while (pageCount > 0 && getPage(pageCount).getByte(0) == 0)
+			pageCount--;
+	}
+
+	@Override
+	public Page getPage(int pageNumber) throws IOException {
+		if (pageNumber < 0 || pageNumber >= pages.length)
+			throw new EOFException("Page " + pageNumber + " is outside of " + getFileName());
+		Page page = pages[pageNumber];
+		if (page == null) {
+			ByteBuffer view = chunks.get(pageNumber / chunkPages).duplicate();
+			int offset = (pageNumber % chunkPages) * pageSize;
+			view.position(offset);
+			view.limit(offset + pageSize);
+			page = new Page(this, pageNumber, view.slice());
+			pages[pageNumber] = page;
+		}
+		return page;
+	}
+
+	@Override
+	public Page getPageForScan(int pageNumber) throws IOException {
+		return getPage(pageNumber);
+	}
+
+	@Override
+	void pageChanged(Page page) {
+		// pages are the mapping itself and do not go through the BufferPool
+	}
+
+	@Override
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	@Override
+	public int allocatePage() throws IOException {
+		int newPage = pageCount + 1;
+		if (newPage >= pages.length)
+			remap(newPage + 1);
+		Page page = getPage(newPage);
+		for (int i = 0; i < pageSize; i += 8)
+			page.putLong(i, 0);
+		pageCount = newPage;
+		return newPage;
+	}
+
+	@Override
+	public void truncate(int pageCount) {
+		// the file is cut back on close
+		this.pageCount = Math.min(this.pageCount, pageCount);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		for (MappedByteBuffer chunk : chunks)
+			chunk.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		chunks.clear();
+		pages = new Page[0];
+		file.setLength((long) (pageCount + 1) * pageSize);
+		file.close();
+	}
+
+	/**
+	 * Maps enough pages to cover the given number of pages, counting the file
+	 * header, rounded up to whole CHUNK_PAGES. The last chunk is mapped again when
+	 * it grows. Page views handed out before stay valid, they keep the old mapping
+	 * alive and the old and new mapping share the same memory.
+	 */
+	private void remap(int minPages) throws IOException {
+		int mappedPages = ((minPages + CHUNK_PAGES - 1) / CHUNK_PAGES) * CHUNK_PAGES;
+		int chunkCount = (mappedPages + chunkPages - 1) / chunkPages;
+		for (int i = Math.max(chunks.size() - 1, 0); i < chunkCount; i++) {
+			int size = Math.min(chunkPages, mappedPages - i * chunkPages);
+			MappedByteBuffer chunk = channel.map(MapMode.READ_WRITE, position(i * chunkPages), (long) size * pageSize);
+			if (i < chunks.size())
+				chunks.set(i, chunk);
+			else
+				chunks.add(chunk);
+		}
+		pages = Arrays.copyOf(pages, mappedPages);
+	}
+}
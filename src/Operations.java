@@ -1,48 +1,54 @@
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Runs the statements typed at the prompt, parsed by Parser.
+ */
 public class Operations {
-	static long FILESIZE = 512;
+	// statements prepared by the session running on the thread, by name
+	private static final ThreadLocal<Map<String, Plan>> prepared = new ThreadLocal<Map<String, Plan>>() {
+		@Override
+		protected Map<String, Plan> initialValue() {
+			return new HashMap<>();
+		}
+	};
 	
 	public static void parseDelete(String userCommand) {
 		// DELETE FROM table_name [WHERE condition];
-		String[] splitOnWhere = userCommand.split("where");
-		if (splitOnWhere.length < 2) {
-			System.out.println("Missing Where clause.");
+		execute(userCommand);
+	}
+
+	public static void parseShow(String userCommand) {
+		// SHOW TABLES;
+		try {
+			new Parser(userCommand).parseShowTables();
+		} catch (Exception e) {
+			System.out.println("Unknown command: " + userCommand);
 			return;
 		}
-		String[] condition = splitOnWhere[1].trim().split(" ");
-		String[] queryString = splitOnWhere[0].trim().split(" ");
-		String tableName = queryString[queryString.length - 1];
+		String[] columnNames = new String[] { "*" };
+		String[] condition = new String[0];
 		try {
-			Stub.delete("data/user_data", tableName, condition);
+			Stub.select("data/catalog", "davisbase_tables", columnNames, condition);
 		} catch (Exception e) {
+			System.out.println("Error: Couldn't show tables");
 			e.printStackTrace();
 		}
 	}
 
-	public static void parseShow(String userCommand) {
-		// SHOW TABLES;
-		if (userCommand.split(" ")[1].trim().equalsIgnoreCase("tables")) {
-			String[] columnNames = new String[] { "*" };
-			String[] condition = new String[0];
-			try {
-				Stub.select("data/catalog", "davisbase_tables", columnNames, condition);
-			} catch (Exception e) {
-				System.out.println("Error: Couldn't show tables");
-				e.printStackTrace();
-			}
-		} else
-			System.out.println("Unknown command: " + userCommand);
-	}
-
 	public static void dropTable(String dropTableString) {
 		// DROP TABLE table_name;
-		String[] tokens = dropTableString.split(" ");
+		String tableName;
+		try {
+			tableName = new Parser(dropTableString).parseDropTable();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
 		try {
-			Stub.dropTable("data/user_data", tokens[tokens.length - 1].trim());
+			Stub.dropTable("data/user_data", tableName);
 		} catch (Exception e) {
+			BufferPool.getInstance().fail();
 			e.printStackTrace();
 		}
 	}
@@ -55,27 +61,8 @@ public class Operations {
 	 */
 	public static void parseQuery(String queryString) {
 		// SELECT [col_names] FROM table_name [WHERE condition];
-		String[] splitOnWhere = queryString.split("where");
-		String querySplit[] = splitOnWhere[0].trim().split(" ");
-		String tableName = querySplit[querySplit.length - 1];
-
-		String[] cols = splitOnWhere[0].trim().split("from")[0].trim().replace("select", "").split(",");
-		String[] columnNames = new String[cols.length];
-		for (int i = 0; i < cols.length; i++)
-			columnNames[i] = cols[i].trim();
-
-		String[] condition = new String[0];
-		if (splitOnWhere.length > 1) {
-			condition = splitOnWhere[1].trim().split(" ");
-		}
-		try {
-			if (tableName.contains("davisbase"))
-				Stub.select("data/catalog", tableName, columnNames, condition);
-			else
-				Stub.select("data/user_data", tableName, columnNames, condition);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		// SELECT COUNT(*) | COUNT | SUM | MIN | MAX | AVG ( column_name ), ... FROM table_name [WHERE condition];
+		execute(queryString);
 	}
 
 	/**
@@ -86,30 +73,7 @@ public class Operations {
 	 */
 	public static void parseUpdate(String updateString) {
 		// UPDATE table_name SET column_name = value [WHERE condition]
-		String[] splitOnWhere = updateString.split("where");
-		if (splitOnWhere.length < 2) {
-			System.out.println("Missing where clause. Can not update without where claues.");
-			return;
-		}
-		String[] condition = splitOnWhere[1].trim().split(" ");
-		String[] splitOnSet = splitOnWhere[0].trim().split("set");
-		String tableName = splitOnSet[0].trim().split(" ")[1];
-		String[] data = splitOnSet[1].trim().split(" ");
-		
-//		for(int i=0;i< data.length ; i++)
-//		{
-//			System.out.println("@@@"+data[i]);
-//		}
-
-		if (tableName.equalsIgnoreCase("davisbase_tables") || tableName.equalsIgnoreCase("davisbase_columns")) {
-			System.out.println("can not update Meta tables.");
-			return;
-		}
-		try {
-			Stub.update("data/user_data", tableName, data, condition);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		execute(updateString);
 	}
 
 	/**
@@ -120,34 +84,70 @@ public class Operations {
 	 */
 	public static void parseInsert(String insertString) {
 		// INSERT INTO table_name [column_list] VALUES value_list
-		ArrayList<String> createTableTokens = new ArrayList<String>(Arrays.asList(insertString.split(" ")));
+		execute(insertString);
+	}
 
-		/* Define table file name */
-		String tableName = createTableTokens.get(2);
-		String[] temp = insertString.replaceAll("\\(", " ").replaceAll("\\)", " ").split("values");
-		String[] values = temp[1].trim().split(",");
-		String[] temp2 = temp[0].trim().split(" "+tableName+" ");
-		String[] columnNames = temp2[1].trim().split(",");
+	/**
+	 * Runs a statement from its cached plan, parsing it the first time.
+	 */
+	private static void execute(String statement) {
+		Plan plan;
+		try {
+			plan = PlanCache.getInstance().get(statement);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		plan.execute(new String[0]);
+	}
 
+	public static void parsePrepare(String userCommand) {
+		// PREPARE name AS statement
 		try {
-			for (int i = 0; i < values.length; i++)
-			{	
-				values[i] = values[i].trim();
-				System.out.println("values---"+values[i]);
-			}
-
-			for (int i = 0; i < columnNames.length; i++)
-			{
-				columnNames[i] = columnNames[i].trim();
-				System.out.println("col.names---"+columnNames[i]);
-			}	
-
-			Stub.insert("data/user_data", tableName, columnNames, values);
+			Parser.Prepare prepare = new Parser(userCommand).parsePrepare();
+			Plan plan = PlanCache.getInstance().get(prepare.statement);
+			prepared.get().put(prepare.name, plan);
+			System.out.println("Prepared " + prepare.name + " with " + plan.getParameterCount() + " parameters.");
 		} catch (Exception e) {
-			e.printStackTrace();
+			System.out.println(e.getMessage());
 		}
 	}
 
+	public static void parseExecute(String userCommand) {
+		// EXECUTE name [USING value, ...]
+		Parser.Execute execute;
+		try {
+			execute = new Parser(userCommand).parseExecute();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		Plan plan = prepared.get().get(execute.name);
+		if (plan == null) {
+			System.out.println("Unknown prepared statement " + execute.name + ".");
+			return;
+		}
+		plan.execute(execute.parameters);
+	}
+
+	public static void parseDeallocate(String userCommand) {
+		// DEALLOCATE [PREPARE] name
+		try {
+			String name = new Parser(userCommand).parseDeallocate();
+			if (prepared.get().remove(name) == null)
+				System.out.println("Unknown prepared statement " + name + ".");
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Forgets the statements prepared on this thread, when its session ends.
+	 */
+	public static void deallocateAll() {
+		prepared.remove();
+	}
+
 	/**
 	 * Stub method for creating new tables
 	 *
@@ -155,24 +155,15 @@ public class Operations {
 	 *            is a String of the user input
 	 */
 	public static void parseCreateTable(String createTableString) {
-		
-		//TODO create index files....parse separately fr it....
 		// CREATE TABLE table_name ( row_id INT, column_name2 data_type2 [NOT NULL],
-		// column_name3 data_type3 [NOT NULL], ...)
-		ArrayList<String> createTableTokens = new ArrayList<String>(Arrays.asList(createTableString.split(" ")));
-		
-		/* Define table file name */
-		String tableName = createTableTokens.get(2);
+		// column_name3 data_type3 [NOT NULL], ...) [PAGE_SIZE bytes]
 		System.out.println("create table string---"+ createTableString);
-		/* YOUR CODE GOES HERE */
-		String[] temp = createTableString.replaceAll("\\(", " ").replaceAll("\\)", " ").split(" "+tableName+" ");
-		for(int i=0;i<temp.length;i++)
-			System.out.println("temp---"+temp[i]);
-		String[] columnNames = temp[1].trim().split(",");
-		
 		try {
-			if (columnNames.length < 1)
-				throw new Exception("Can not create a table with no columns.");
+			Parser.CreateTable createTable = new Parser(createTableString).parseCreateTable();
+			String tableName = createTable.tableName;
+			String[] columnNames = createTable.columns;
+			int pageSize = (createTable.pageSize != 0) ? createTable.pageSize : Start.pageSize;
+
 			String[] col1_Details = columnNames[0].split(" ");
 			if(!col1_Details[0].trim().equalsIgnoreCase("row_id") || col1_Details[col1_Details.length-1].trim().equalsIgnoreCase("NULL"))
 				throw new Exception("Format Error: Primary column should be 'row_id INT' and cannot be 'NULL' ");
@@ -180,23 +171,7 @@ public class Operations {
 			/* Code to create a .tbl file to contain table data */
 			
 			System.out.println("creating davisbase_tables table");
-			RandomAccessFile binaryFile = new RandomAccessFile("data/user_data/"+ tableName +".tbl", "rw");
-			binaryFile.setLength(0);
-			binaryFile.setLength(FILESIZE);
-			
-			binaryFile.seek(0);
-			binaryFile.writeByte(0x0D);
-			
-			binaryFile.seek(1);
-			binaryFile.writeByte(0x00);
-
-			binaryFile.seek(2);
-			binaryFile.writeShort(512);
-
-			binaryFile.seek(4);
-			binaryFile.writeInt(0xFFFFFFFF);
-			
-			binaryFile.close();
+			Stub.createTableFile("data/user_data", tableName, pageSize);
 			//insert table info into meta tables
 			for(int i=0;i<columnNames.length;i++)
 				System.out.println("col names---"+columnNames[i]);
@@ -204,12 +179,65 @@ public class Operations {
 			Stub.InsertToMeta("data/user_data", tableName, columnNames);
 
 		} catch (Exception e) {
+			BufferPool.getInstance().fail();
 			e.printStackTrace();
 		}
 	}
 
+	public static void parseVacuum(String userCommand) {
+		// VACUUM table_name
+		String tableName;
+		try {
+			tableName = new Parser(userCommand).parseVacuum();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		String path = tableName.contains("davisbase") ? "data/catalog" : "data/user_data";
+		try {
+			Stub.vacuum(path, tableName);
+		} catch (Exception e) {
+			BufferPool.getInstance().fail();
+			e.printStackTrace();
+		}
+	}
+
+	public static void parseCopy(String userCommand) {
+		// COPY table_name FROM | TO 'file_name' [[WITH] HEADER]
+		Parser.Copy copy;
+		try {
+			copy = new Parser(userCommand).parseCopy();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		String path = copy.tableName.contains("davisbase") ? "data/catalog" : "data/user_data";
+		try {
+			if (copy.from)
+				Stub.copyFrom(path, copy.tableName, copy.fileName, copy.header);
+			else
+				Stub.copyTo(path, copy.tableName, copy.fileName, copy.header);
+		} catch (Exception e) {
+			// bad files and values are common, so they get one line, not a trace
+			BufferPool.getInstance().fail();
+			System.out.println("Error: " + e.getMessage());
+		}
+	}
+
 	public static void parseCreateIndex(String userCommand) {
-		// TODO Auto-generated method stub
-		System.out.println(userCommand);
+		// CREATE INDEX [index_name] ON table_name ( column_name )
+		Parser.CreateIndex createIndex;
+		try {
+			createIndex = new Parser(userCommand).parseCreateIndex();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		try {
+			Stub.createIndex("data/user_data", createIndex.tableName, createIndex.columnName);
+		} catch (Exception e) {
+			BufferPool.getInstance().fail();
+			e.printStackTrace();
+		}
 	}
 }
@@ -0,0 +1,203 @@
+import java.nio.ByteBuffer;
+
+/**
+ * One fixed-size page of a table file held in memory. All offsets are relative
+ * to the start of the page.
+ */
+public class Page {
+
+	private final PageFile file;
+	private final int pageNumber;
+	private final ByteBuffer buffer;
+	private boolean dirty = false;
+	// changed since its image was last written to the WriteAheadLog
+	private boolean unlogged = false;
+	// log sequence number of its last image in the WriteAheadLog
+	private long lsn = 0;
+	// statements that pinned the page in the BufferPool
+	private int pins = 0;
+	// image from before the statement changing the page changed it, null while
+	// no statement is
+	private byte[] savedImage;
+
+	public Page(PageFile file, int pageNumber, ByteBuffer buffer) {
+		this.file = file;
+		this.pageNumber = pageNumber;
+		this.buffer = buffer;
+	}
+
+	public PageFile getFile() {
+		return file;
+	}
+
+	public int getPageNumber() {
+		return pageNumber;
+	}
+
+	public int getSize() {
+		return buffer.capacity();
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	public boolean isUnlogged() {
+		return unlogged;
+	}
+
+	public void setUnlogged(boolean unlogged) {
+		this.unlogged = unlogged;
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
+	void pin() {
+		pins++;
+	}
+
+	void unpin() {
+		pins--;
+	}
+
+	boolean isPinned() {
+		return pins > 0;
+	}
+
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public byte getByte(int offset) {
+		return buffer.get(offset);
+	}
+
+	public short getShort(int offset) {
+		return buffer.getShort(offset);
+	}
+
+	public int getInt(int offset) {
+		return buffer.getInt(offset);
+	}
+
+	public long getLong(int offset) {
+		return buffer.getLong(offset);
+	}
+
+	public float getFloat(int offset) {
+		return buffer.getFloat(offset);
+	}
+
+	public double getDouble(int offset) {
+		return buffer.getDouble(offset);
+	}
+
+	public void getBytes(int offset, byte[] dst) {
+		for (int i = 0; i < dst.length; i++)
+			dst[i] = buffer.get(offset + i);
+	}
+
+	public void putByte(int offset, int value) {
+		changed();
+		buffer.put(offset, (byte) value);
+	}
+
+	public void putShort(int offset, int value) {
+		changed();
+		buffer.putShort(offset, (short) value);
+	}
+
+	public void putInt(int offset, int value) {
+		changed();
+		buffer.putInt(offset, value);
+	}
+
+	public void putLong(int offset, long value) {
+		changed();
+		buffer.putLong(offset, value);
+	}
+
+	public void putFloat(int offset, float value) {
+		changed();
+		buffer.putFloat(offset, value);
+	}
+
+	public void putDouble(int offset, double value) {
+		changed();
+		buffer.putDouble(offset, value);
+	}
+
+	public void putBytes(int offset, byte[] src) {
+		changed();
+		for (int i = 0; i < src.length; i++)
+			buffer.put(offset + i, src[i]);
+	}
+
+	public void putBytes(int offset, byte[] src, int from, int length) {
+		changed();
+		for (int i = 0; i < length; i++)
+			buffer.put(offset + i, src[from + i]);
+	}
+
+	/**
+	 * Writes the low eight bits of every character, the same encoding as
+	 * RandomAccessFile.writeBytes.
+	 */
+	public void putBytes(int offset, String s) {
+		changed();
+		for (int i = 0; i < s.length(); i++)
+			buffer.put(offset + i, (byte) s.charAt(i));
+	}
+
+	/**
+	 * Called before each change, so the file sees the page as it was before the
+	 * first change since its image was logged.
+	 */
+	private void changed() {
+		if (!unlogged) {
+			file.pageChanged(this);
+			unlogged = true;
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Keeps the image the page has now, so the changes about to be made can be
+	 * rolled back.
+	 */
+	void saveImage() {
+		savedImage = new byte[buffer.capacity()];
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.get(savedImage);
+	}
+
+	byte[] getSavedImage() {
+		return savedImage;
+	}
+
+	void dropSavedImage() {
+		savedImage = null;
+	}
+
+	/**
+	 * Puts back the image kept by saveImage, dropping the changes made since.
+	 */
+	void restore() {
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.put(savedImage);
+		savedImage = null;
+		unlogged = false;
+	}
+}
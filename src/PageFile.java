@@ -0,0 +1,211 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A table file seen as a sequence of pages. Page 0 is the file header, which
+ * starts with a magic string and records the page size the file was created
+ * with. Its remaining bytes, from offset 16 on, belong to the user of the file.
+ * Data pages are numbered from 1. Pages are served from the shared BufferPool
+ * and read or written whole with positional channel I/O, so callers never move
+ * a file pointer.
+ *
+ * Setting the davisbase.storage system property to "mmap" makes open() return a
+ * MappedPageFile instead, which serves pages straight from a memory mapping of
+ * the file.
+ */
+public class PageFile {
+
+	private static final byte[] MAGIC = "DAVISTBL".getBytes();
+	private static final int FORMAT_VERSION = 1;
+	// file header: magic (8), format version (2), unused (2), page size (4)
+	private static final int VERSION_OFFSET = 8;
+	private static final int PAGE_SIZE_OFFSET = 12;
+
+	private final String fileName;
+	private final int fileId;
+	protected final int pageSize;
+	protected final RandomAccessFile file;
+	protected final FileChannel channel;
+
+	public static PageFile open(String fileName) throws IOException {
+		int pageSize = readPageSize(fileName);
+		if ("mmap".equalsIgnoreCase(System.getProperty("davisbase.storage")))
+			return new MappedPageFile(fileName, pageSize);
+		return new PageFile(fileName, pageSize);
+	}
+
+	/**
+	 * Replaces the file with one that holds nothing but the file header.
+	 */
+	public static PageFile create(String fileName, int pageSize) throws IOException {
+		BufferPool.getInstance().discard(fileName);
+		RandomAccessFile newFile = new RandomAccessFile(fileName, "rw");
+		try {
+			newFile.setLength(0);
+			newFile.setLength(pageSize);
+			newFile.write(MAGIC);
+			newFile.writeShort(FORMAT_VERSION);
+			newFile.seek(PAGE_SIZE_OFFSET);
+			newFile.writeInt(pageSize);
+			// the header is written around the WriteAheadLog, so it is synced here
+			newFile.getFD().sync();
+		} finally {
+			newFile.close();
+		}
+		return open(fileName);
+	}
+
+	/**
+	 * Tells whether the file exists but does not start with the file header, in
+	 * which case it predates it.
+	 */
+	public static boolean isHeaderless(String fileName) throws IOException {
+		File f = new File(fileName);
+		if (!f.exists() || f.length() == 0)
+			return false;
+		RandomAccessFile existing = new RandomAccessFile(f, "r");
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			return existing.read(magic) < MAGIC.length || !Arrays.equals(magic, MAGIC);
+		} finally {
+			existing.close();
+		}
+	}
+
+	private static int readPageSize(String fileName) throws IOException {
+		if (isHeaderless(fileName))
+			throw new IOException(fileName + " is not a DavisBase table file.");
+		RandomAccessFile existing = new RandomAccessFile(fileName, "r");
+		try {
+			existing.seek(VERSION_OFFSET);
+			int version = existing.readShort();
+			if (version > FORMAT_VERSION)
+				throw new IOException(fileName + " was written by a newer version of DavisBase.");
+			existing.seek(PAGE_SIZE_OFFSET);
+			return existing.readInt();
+		} finally {
+			existing.close();
+		}
+	}
+
+	protected PageFile(String fileName, int pageSize) throws IOException {
+		this.fileName = fileName;
+		this.pageSize = pageSize;
+		this.file = new RandomAccessFile(fileName, "rw");
+		this.channel = file.getChannel();
+		this.fileId = BufferPool.getInstance().getFileId(fileName);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public int getFileId() {
+		return fileId;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public Page getPage(int pageNumber) throws IOException {
+		return BufferPool.getInstance().getPage(this, pageNumber);
+	}
+
+	/**
+	 * Returns the page for a read only scan, from the BufferPool if it is cached
+	 * there and otherwise read from the file without caching it. The file is read
+	 * without holding the BufferPool lock, so scans on several threads read in
+	 * parallel, and a scan of a large table does not push the pages other
+	 * statements use out of the pool.
+	 */
+	public Page getPageForScan(int pageNumber) throws IOException {
+		Page page = BufferPool.getInstance().getCachedPage(this, pageNumber);
+		return (page != null) ? page : readPage(pageNumber);
+	}
+
+	/**
+	 * Number of data pages, not counting the file header.
+	 */
+	public int getPageCount() throws IOException {
+		return (int) (file.length() / pageSize) - 1;
+	}
+
+	/**
+	 * Appends an empty page to the end of the file and returns its number.
+	 */
+	public int allocatePage() throws IOException {
+		int newPage = getPageCount() + 1;
+		file.setLength((long) (newPage + 1) * pageSize);
+		BufferPool.getInstance().newPage(this, newPage);
+		return newPage;
+	}
+
+	/**
+	 * Cuts the file back to its first pageCount data pages. The cached pages past
+	 * them are dropped unwritten, so the caller must have committed the change
+	 * that stopped using them.
+	 */
+	public void truncate(int pageCount) throws IOException {
+		if (pageCount >= getPageCount())
+			return;
+		BufferPool.getInstance().truncate(this, pageCount);
+		file.setLength((long) (pageCount + 1) * pageSize);
+	}
+
+	public void flush() throws IOException {
+		BufferPool.getInstance().flush(this);
+	}
+
+	/**
+	 * Called the first time a page is changed after it was logged, so the
+	 * statement changing it commits it.
+	 */
+	void pageChanged(Page page) {
+		BufferPool.getInstance().changed(page);
+	}
+
+	/**
+	 * Forces the pages written to the file so far to disk.
+	 */
+	public void sync() throws IOException {
+		channel.force(false);
+	}
+
+	public void close() throws IOException {
+		BufferPool.getInstance().release(this);
+		file.close();
+	}
+
+	Page readPage(int pageNumber) throws IOException {
+		if (pageNumber < 0 || pageNumber > getPageCount())
+			throw new EOFException("Page " + pageNumber + " is outside of " + fileName);
+		ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+		long position = position(pageNumber);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Page " + pageNumber + " is outside of " + fileName);
+		}
+		return new Page(this, pageNumber, buffer);
+	}
+
+	void writePage(Page page) throws IOException {
+		writePage(page.getPageNumber(), page.getBuffer().duplicate());
+	}
+
+	void writePage(int pageNumber, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		long position = position(pageNumber);
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+
+	protected long position(int pageNumber) {
+		return (long) pageNumber * pageSize;
+	}
+}
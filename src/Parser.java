@@ -0,0 +1,532 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recursive descent parser of the statements Operations runs, reading the text
+ * in one pass. The lexer hands out one token at a time as the parser asks for
+ * it, so the text is never split into arrays. Keywords match ignoring case.
+ *
+ * A value is a word such as 42, -1.5, 2018-01-01 or karthik_reddy, a string in
+ * single or double quotes, in which a doubled quote stands for the quote, or ?
+ * for a parameter, which the parsed statement holds as null. Operators need no
+ * spaces around them and != is read as <>.
+ *
+ * SELECT, INSERT, UPDATE and DELETE parse to a Plan, the other statements to
+ * the nodes below.
+ */
+public class Parser {
+
+	private static final int END = 0;
+	private static final int WORD = 1;
+	private static final int STRING = 2;
+	private static final int SYMBOL = 3;
+	private static final String SYMBOLS = "(),;*=<>!?";
+
+	private final String text;
+	private int pos = 0;
+	// the current token
+	private int type;
+	private String token;
+	private int tokenStart;
+
+	public Parser(String text) throws Exception {
+		this.text = text;
+		advance();
+	}
+
+	public static class CreateTable {
+		public final String tableName;
+		// "column_name data_type" or "column_name data_type null"
+		public final String[] columns;
+		// 0 unless given with PAGE_SIZE
+		public final int pageSize;
+
+		CreateTable(String tableName, String[] columns, int pageSize) {
+			this.tableName = tableName;
+			this.columns = columns;
+			this.pageSize = pageSize;
+		}
+	}
+
+	public static class CreateIndex {
+		public final String tableName;
+		public final String columnName;
+
+		CreateIndex(String tableName, String columnName) {
+			this.tableName = tableName;
+			this.columnName = columnName;
+		}
+	}
+
+	public static class Prepare {
+		public final String name;
+		// text of the statement prepared, the key of its plan in the PlanCache
+		public final String statement;
+
+		Prepare(String name, String statement) {
+			this.name = name;
+			this.statement = statement;
+		}
+	}
+
+	public static class Execute {
+		public final String name;
+		public final String[] parameters;
+
+		Execute(String name, String[] parameters) {
+			this.name = name;
+			this.parameters = parameters;
+		}
+	}
+
+	public static class Copy {
+		public final String tableName;
+		public final String fileName;
+		// true for COPY FROM, false for COPY TO
+		public final boolean from;
+		public final boolean header;
+
+		Copy(String tableName, String fileName, boolean from, boolean header) {
+			this.tableName = tableName;
+			this.fileName = fileName;
+			this.from = from;
+			this.header = header;
+		}
+	}
+
+	/**
+	 * SELECT, INSERT, UPDATE or DELETE.
+	 */
+	public Plan parsePlan() throws Exception {
+		Plan plan;
+		if (isKeyword("select"))
+			plan = parseSelect();
+		else if (isKeyword("insert"))
+			plan = parseInsert();
+		else if (isKeyword("update"))
+			plan = parseUpdate();
+		else if (isKeyword("delete"))
+			plan = parseDelete();
+		else
+			throw new Exception("Only SELECT, INSERT, UPDATE and DELETE statements have a plan, got '" + token + "'.");
+		expectEnd();
+		return plan;
+	}
+
+	// SELECT * | column_name, ... | aggregate, ... FROM table_name [WHERE condition]
+	private Plan parseSelect() throws Exception {
+		expectKeyword("select");
+		List<String> columnNames = new ArrayList<>();
+		if (isSymbol("*")) {
+			advance();
+			columnNames.add("*");
+		} else {
+			columnNames.add(selectItem());
+			while (isSymbol(",")) {
+				advance();
+				columnNames.add(selectItem());
+			}
+			int aggregates = 0;
+			for (String columnName : columnNames)
+				if (columnName.indexOf('(') != -1)
+					aggregates++;
+			if (aggregates != 0 && aggregates != columnNames.size())
+				throw new Exception("Format Error: columns can not be selected along with aggregates.");
+		}
+		expectKeyword("from");
+		String tableName = name();
+		String[] condition = new String[0];
+		if (isKeyword("where")) {
+			advance();
+			condition = condition();
+		}
+		return new Plan.Select(tableName, columnNames.toArray(new String[0]), condition);
+	}
+
+	// column_name | COUNT(*) | COUNT | SUM | MIN | MAX | AVG ( column_name )
+	private String selectItem() throws Exception {
+		if (nextChar() != '(' || !(isKeyword("count") || isKeyword("sum") || isKeyword("min") || isKeyword("max")
+				|| isKeyword("avg")))
+			return name();
+		String function = token.toLowerCase();
+		advance();
+		expectSymbol("(");
+		String columnName;
+		if (function.equals("count") && isSymbol("*")) {
+			advance();
+			columnName = "*";
+		} else
+			columnName = name();
+		expectSymbol(")");
+		return function + "(" + columnName + ")";
+	}
+
+	// INSERT INTO table_name [( column_name, ... )] VALUES ( value, ... ) [, ( value, ... ) ...]
+	private Plan parseInsert() throws Exception {
+		expectKeyword("insert");
+		expectKeyword("into");
+		String tableName = name();
+		String[] columnNames = null;
+		if (isSymbol("(")) {
+			List<String> names = new ArrayList<>();
+			advance();
+			names.add(name());
+			while (isSymbol(",")) {
+				advance();
+				names.add(name());
+			}
+			expectSymbol(")");
+			columnNames = names.toArray(new String[0]);
+		}
+		expectKeyword("values");
+		List<String[]> rows = new ArrayList<>();
+		rows.add(row());
+		while (isSymbol(",")) {
+			advance();
+			rows.add(row());
+		}
+		return new Plan.Insert(tableName, columnNames, rows.toArray(new String[0][]));
+	}
+
+	// ( value, ... )
+	private String[] row() throws Exception {
+		List<String> values = new ArrayList<>();
+		expectSymbol("(");
+		values.add(value());
+		while (isSymbol(",")) {
+			advance();
+			values.add(value());
+		}
+		expectSymbol(")");
+		return values.toArray(new String[0]);
+	}
+
+	// UPDATE [TABLE] table_name SET column_name = value WHERE condition
+	private Plan parseUpdate() throws Exception {
+		expectKeyword("update");
+		String tableName = name();
+		if (tableName.equalsIgnoreCase("table") && !isKeyword("set"))
+			tableName = name();
+		expectKeyword("set");
+		String columnName = name();
+		expectSymbol("=");
+		String value = value();
+		if (type == END)
+			throw new Exception("Missing where clause. Can not update without where claues.");
+		expectKeyword("where");
+		String[] condition = condition();
+		if (tableName.equalsIgnoreCase("davisbase_tables") || tableName.equalsIgnoreCase("davisbase_columns"))
+			throw new Exception("can not update Meta tables.");
+		return new Plan.Update(tableName, new String[] { columnName, "=", value }, condition);
+	}
+
+	// DELETE FROM table_name WHERE condition
+	private Plan parseDelete() throws Exception {
+		expectKeyword("delete");
+		expectKeyword("from");
+		String tableName = name();
+		if (type == END)
+			throw new Exception("Missing Where clause.");
+		expectKeyword("where");
+		return new Plan.Delete(tableName, condition());
+	}
+
+	/**
+	 * column_name operator value, joined by AND and OR, as the tokens
+	 * Predicate.compile takes.
+	 */
+	private String[] condition() throws Exception {
+		List<String> tokens = new ArrayList<>();
+		while (true) {
+			tokens.add(name());
+			tokens.add(operator());
+			tokens.add(value());
+			if (!isKeyword("and") && !isKeyword("or"))
+				break;
+			tokens.add(token.toLowerCase());
+			advance();
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	// CREATE TABLE table_name ( column_name data_type [[NOT] NULL], ... ) [PAGE_SIZE [=] bytes]
+	public CreateTable parseCreateTable() throws Exception {
+		expectKeyword("create");
+		expectKeyword("table");
+		String tableName = name();
+		List<String> columns = new ArrayList<>();
+		expectSymbol("(");
+		while (true) {
+			String column = name() + " " + name();
+			if (isKeyword("null")) {
+				advance();
+				column += " null";
+			} else if (isKeyword("not")) {
+				advance();
+				expectKeyword("null");
+			}
+			columns.add(column);
+			if (!isSymbol(","))
+				break;
+			advance();
+		}
+		expectSymbol(")");
+		int pageSize = 0;
+		if (isKeyword("page_size")) {
+			advance();
+			if (isSymbol("="))
+				advance();
+			pageSize = number();
+		}
+		expectEnd();
+		return new CreateTable(tableName, columns.toArray(new String[0]), pageSize);
+	}
+
+	// CREATE INDEX [index_name] ON table_name ( column_name )
+	public CreateIndex parseCreateIndex() throws Exception {
+		expectKeyword("create");
+		expectKeyword("index");
+		if (!isKeyword("on"))
+			name();
+		expectKeyword("on");
+		String tableName = name();
+		expectSymbol("(");
+		String columnName = name();
+		expectSymbol(")");
+		expectEnd();
+		return new CreateIndex(tableName, columnName);
+	}
+
+	// DROP TABLE table_name
+	public String parseDropTable() throws Exception {
+		expectKeyword("drop");
+		expectKeyword("table");
+		String tableName = name();
+		expectEnd();
+		return tableName;
+	}
+
+	// SHOW TABLES
+	public void parseShowTables() throws Exception {
+		expectKeyword("show");
+		expectKeyword("tables");
+		expectEnd();
+	}
+
+	// VACUUM table_name
+	public String parseVacuum() throws Exception {
+		expectKeyword("vacuum");
+		String tableName = name();
+		expectEnd();
+		return tableName;
+	}
+
+	// COPY table_name FROM | TO 'file_name' [[WITH] HEADER]
+	public Copy parseCopy() throws Exception {
+		expectKeyword("copy");
+		String tableName = name();
+		boolean from = isKeyword("from");
+		if (!from && !isKeyword("to"))
+			throw error("FROM or TO");
+		advance();
+		if (type != STRING)
+			throw error("a quoted file name");
+		String fileName = token;
+		advance();
+		boolean header = false;
+		if (isKeyword("with") || isKeyword("header")) {
+			if (isKeyword("with"))
+				advance();
+			expectKeyword("header");
+			header = true;
+		}
+		expectEnd();
+		return new Copy(tableName, fileName, from, header);
+	}
+
+	// PREPARE name AS statement
+	public Prepare parsePrepare() throws Exception {
+		expectKeyword("prepare");
+		String name = name();
+		if (isKeyword("from"))
+			advance();
+		else
+			expectKeyword("as");
+		if (type == END)
+			throw error("a statement");
+		return new Prepare(name, text.substring(tokenStart).trim());
+	}
+
+	// EXECUTE name [USING value, ...]
+	public Execute parseExecute() throws Exception {
+		expectKeyword("execute");
+		String name = name();
+		List<String> parameters = new ArrayList<>();
+		if (isKeyword("using")) {
+			advance();
+			parameters.add(literal());
+			while (isSymbol(",")) {
+				advance();
+				parameters.add(literal());
+			}
+		}
+		expectEnd();
+		return new Execute(name, parameters.toArray(new String[0]));
+	}
+
+	// DEALLOCATE [PREPARE] name
+	public String parseDeallocate() throws Exception {
+		expectKeyword("deallocate");
+		String name = name();
+		if (name.equalsIgnoreCase("prepare") && type != END)
+			name = name();
+		expectEnd();
+		return name;
+	}
+
+	private String name() throws Exception {
+		if (type != WORD || !(Character.isLetter(token.charAt(0)) || token.charAt(0) == '_'))
+			throw error("a name");
+		String name = token;
+		advance();
+		return name;
+	}
+
+	private String operator() throws Exception {
+		if (type != SYMBOL || !(token.equals("=") || token.equals("<>") || token.equals("<") || token.equals("<=")
+				|| token.equals(">") || token.equals(">=")))
+			throw error("a comparison operator");
+		String operator = token;
+		advance();
+		return operator;
+	}
+
+	/**
+	 * A value, or null for a parameter.
+	 */
+	private String value() throws Exception {
+		if (isSymbol("?")) {
+			advance();
+			return null;
+		}
+		return literal();
+	}
+
+	private String literal() throws Exception {
+		if (type != WORD && type != STRING)
+			throw error("a value");
+		String value = token;
+		advance();
+		return value;
+	}
+
+	private int number() throws Exception {
+		if (type != WORD)
+			throw error("a number");
+		try {
+			int number = Integer.parseInt(token);
+			advance();
+			return number;
+		} catch (NumberFormatException e) {
+			throw error("a number");
+		}
+	}
+
+	private boolean isKeyword(String keyword) {
+		return type == WORD && token.equalsIgnoreCase(keyword);
+	}
+
+	private boolean isSymbol(String symbol) {
+		return type == SYMBOL && token.equals(symbol);
+	}
+
+	private void expectKeyword(String keyword) throws Exception {
+		if (!isKeyword(keyword))
+			throw error(keyword.toUpperCase());
+		advance();
+	}
+
+	private void expectSymbol(String symbol) throws Exception {
+		if (!isSymbol(symbol))
+			throw error("'" + symbol + "'");
+		advance();
+	}
+
+	private void expectEnd() throws Exception {
+		if (isSymbol(";"))
+			advance();
+		if (type != END)
+			throw error("the end of the statement");
+	}
+
+	private Exception error(String expected) {
+		return new Exception("Format Error: expected " + expected + ", got "
+				+ (type == END ? "the end of the statement" : "'" + token + "'") + ".");
+	}
+
+	/**
+	 * The first character after the current token that is not white space.
+	 */
+	private char nextChar() {
+		int i = pos;
+		while (i < text.length() && Character.isWhitespace(text.charAt(i)))
+			i++;
+		return i < text.length() ? text.charAt(i) : 0;
+	}
+
+	/**
+	 * Reads the next token.
+	 */
+	private void advance() throws Exception {
+		int length = text.length();
+		while (pos < length && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		tokenStart = pos;
+		if (pos == length) {
+			type = END;
+			token = "";
+			return;
+		}
+
+		char c = text.charAt(pos);
+		if (c == '\'' || c == '"') {
+			StringBuilder quoted = null;
+			int from = ++pos;
+			while (true) {
+				if (pos == length)
+					throw new Exception("Format Error: string " + text.substring(tokenStart) + " is not closed.");
+				if (text.charAt(pos++) != c)
+					continue;
+				if (pos < length && text.charAt(pos) == c) {
+					// a doubled quote, the first is kept
+					if (quoted == null)
+						quoted = new StringBuilder();
+					quoted.append(text, from, pos);
+					from = ++pos;
+					continue;
+				}
+				break;
+			}
+			token = (quoted == null) ? text.substring(from, pos - 1) : quoted.append(text, from, pos - 1).toString();
+			type = STRING;
+		} else if (SYMBOLS.indexOf(c) != -1) {
+			pos++;
+			char next = (pos < length) ? text.charAt(pos) : 0;
+			if ((c == '<' && (next == '=' || next == '>')) || ((c == '>' || c == '!') && next == '='))
+				pos++;
+			token = text.substring(tokenStart, pos);
+			if (token.equals("!="))
+				token = "<>";
+			type = SYMBOL;
+		} else {
+			while (pos < length) {
+				char ch = text.charAt(pos);
+				if (Character.isWhitespace(ch) || SYMBOLS.indexOf(ch) != -1 || ch == '\'' || ch == '"')
+					break;
+				pos++;
+			}
+			token = text.substring(tokenStart, pos);
+			type = WORD;
+		}
+	}
+}
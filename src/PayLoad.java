@@ -1,5 +1,22 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The columns of a row after row_id. Values are kept as the cell stores them,
+ * in one buffer read with the serial type of each column, so they are read as
+ * native values and only turned into strings when getData is called.
+ *
+ * Dates and datetimes are stored as milliseconds since the epoch, in UTC.
+ */
 public class PayLoad {
 
+	private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
 	private byte noColumns;
 
 	public byte getNoColumns() {
@@ -20,9 +37,85 @@ public class PayLoad {
 		this.dataTypes = dataType;
 	}
 
+	// column values as stored in the cell, column i starting at offsets[i]
+	private ByteBuffer values;
+	private int[] offsets;
+	// columns getData formats, null for all
+	private boolean[] projection;
+
+	/**
+	 * Sets the stored column values, laid out by the serial types set before.
+	 */
+	public void setValues(byte[] values) throws Exception {
+		this.values = ByteBuffer.wrap(values);
+		this.offsets = new int[dataTypes.length];
+		int pos = 0;
+		for (int i = 0; i < dataTypes.length; i++) {
+			offsets[i] = pos;
+			pos += Table.getSizeByHeader(dataTypes[i]);
+		}
+		this.dataArray = null;
+	}
+
+	public byte[] getValues() {
+		return values.array();
+	}
+
+	/**
+	 * Limits getData to the flagged columns, the others are left null.
+	 */
+	public void setProjection(boolean[] projection) {
+		this.projection = projection;
+		this.dataArray = null;
+	}
+
+	public boolean isNull(int column) {
+		return dataTypes[column] >= 0x00 && dataTypes[column] <= 0x03;
+	}
+
+	/**
+	 * Value of an integer, date or datetime column.
+	 */
+	public long getLong(int column) {
+		int pos = offsets[column];
+		switch (dataTypes[column]) {
+		case 0x04:
+			return values.get(pos);
+		case 0x05:
+			return values.getShort(pos);
+		case 0x06:
+			return values.getInt(pos);
+		default:
+			return values.getLong(pos);
+		}
+	}
+
+	/**
+	 * Value of a real or double column.
+	 */
+	public double getDouble(int column) {
+		if (dataTypes[column] == 0x08)
+			return values.getFloat(offsets[column]);
+		return values.getDouble(offsets[column]);
+	}
+
+	public String getText(int column) {
+		int length = (dataTypes[column] & 0xFF) - 0x0C;
+		return new String(values.array(), offsets[column], length, StandardCharsets.ISO_8859_1);
+	}
+
 	private String[] dataArray;
 
+	/**
+	 * The column values as strings, formatted the first time they are asked for.
+	 */
 	public String[] getData() {
+		if (dataArray == null && values != null) {
+			dataArray = new String[dataTypes.length];
+			for (int i = 0; i < dataTypes.length; i++)
+				if (projection == null || (i < projection.length && projection[i]))
+					dataArray[i] = format(i);
+		}
 		return dataArray;
 	}
 
@@ -30,6 +123,100 @@ public class PayLoad {
 		this.dataArray = data;
 	}
 
+	private String format(int column) {
+		switch (dataTypes[column]) {
+		case 0x00:
+		case 0x01:
+		case 0x02:
+		case 0x03:
+			return "null";
+		case 0x04:
+		case 0x05:
+		case 0x06:
+			return Integer.toString((int) getLong(column));
+		case 0x07:
+			return Long.toString(getLong(column));
+		case 0x08:
+			return String.valueOf(values.getFloat(offsets[column]));
+		case 0x09:
+			return String.valueOf(getDouble(column));
+		case 0x0A:
+			return DATE_TIME.format(LocalDateTime.ofEpochSecond(Math.floorDiv(getLong(column), 1000),
+					(int) Math.floorMod(getLong(column), 1000L) * 1000000, ZoneOffset.UTC));
+		case 0x0B:
+			return DATE.format(LocalDate.ofEpochDay(Math.floorDiv(getLong(column), 86400000L)));
+		default:
+			return getText(column);
+		}
+	}
+
+	/**
+	 * Converts values given as strings to the stored form of the given serial
+	 * types. values[from] is the value of the first column after row_id.
+	 */
+	public static byte[] encode(byte[] dataTypes, String[] data, int from) throws Exception {
+		int size = 0;
+		for (byte dataType : dataTypes)
+			size += Table.getSizeByHeader(dataType);
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (int i = 0; i < dataTypes.length; i++) {
+			String value = data[i + from];
+			switch (dataTypes[i]) {
+			case 0x00:
+				buffer.put((byte) 0);
+				break;
+			case 0x01:
+				buffer.putShort((short) 0);
+				break;
+			case 0x02:
+				buffer.putInt(0);
+				break;
+			case 0x03:
+				buffer.putLong(0);
+				break;
+			case 0x04:
+				buffer.put(Byte.parseByte(value));
+				break;
+			case 0x05:
+				buffer.putShort(Short.parseShort(value));
+				break;
+			case 0x06:
+				buffer.putInt(Integer.parseInt(value));
+				break;
+			case 0x07:
+				buffer.putLong(Long.parseLong(value));
+				break;
+			case 0x08:
+				buffer.putFloat(Float.parseFloat(value));
+				break;
+			case 0x09:
+				buffer.putDouble(Double.parseDouble(value));
+				break;
+			case 0x0A:
+			case 0x0B:
+				buffer.putLong(parseDate(dataTypes[i], value));
+				break;
+			default:
+				// text is stored one byte per character, as Page.putBytes writes it
+				for (int c = 0; c < value.length(); c++)
+					buffer.put((byte) value.charAt(c));
+				break;
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Milliseconds since the epoch of a date, yyyy-MM-dd, or of a datetime,
+	 * yyyy-MM-dd HH:mm:ss, where an underscore may stand for the space.
+	 */
+	public static long parseDate(byte dataType, String value) {
+		value = value.replaceAll("'", "").replaceAll("\"", "").replace('_', ' ').trim();
+		if (dataType == 0x0B)
+			return LocalDate.parse(value, DATE).toEpochDay() * 86400000L;
+		return LocalDateTime.parse(value, DATE_TIME).toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+
 	private int payLoadSize;
 
 	public void setSize(int size) {
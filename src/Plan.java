@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SELECT, INSERT, UPDATE or DELETE parsed once from its text, so running it
+ * again only binds its parameters and calls the Stub. A value or the operand of
+ * a comparison written as ? is a parameter, held as null by the plan and given
+ * when the plan is executed, in the order the placeholders appear in the
+ * statement. Plans hold no state of a run and are shared by every session, see
+ * PlanCache.
+ */
+public abstract class Plan {
+
+	private final int parameterCount;
+
+	protected Plan(String[]... parts) {
+		int count = 0;
+		for (String[] tokens : parts)
+			for (String token : tokens)
+				if (token == null)
+					count++;
+		this.parameterCount = count;
+	}
+
+	public int getParameterCount() {
+		return parameterCount;
+	}
+
+	/**
+	 * Runs the statement with the given parameter values.
+	 */
+	public void execute(String[] parameters) {
+		if (parameters.length != parameterCount) {
+			System.out.println("Error: expected " + parameterCount + " parameters, got " + parameters.length + ".");
+			return;
+		}
+		try {
+			run(parameters);
+		} catch (Exception e) {
+			BufferPool.getInstance().fail();
+			e.printStackTrace();
+		}
+	}
+
+	protected abstract void run(String[] parameters) throws Exception;
+
+	/**
+	 * Parses a statement, throwing an exception with the message to show when it
+	 * is not well formed.
+	 */
+	public static Plan parse(String statement) throws Exception {
+		return new Parser(statement).parsePlan();
+	}
+
+	/**
+	 * Copy of tokens with each placeholder replaced by the next parameter, from
+	 * parameters[next[0]] on, or tokens itself when it has no placeholder. next[0]
+	 * is advanced past the parameters used.
+	 */
+	protected static String[] bind(String[] tokens, String[] parameters, int[] next) {
+		String[] bound = tokens;
+		for (int i = 0; i < tokens.length; i++) {
+			if (tokens[i] == null) {
+				if (bound == tokens)
+					bound = tokens.clone();
+				bound[i] = parameters[next[0]++];
+			}
+		}
+		return bound;
+	}
+
+	/**
+	 * SELECT [col_names] FROM table_name [WHERE condition], or SELECT of
+	 * aggregates such as COUNT(*) or SUM(column_name).
+	 */
+	static class Select extends Plan {
+		private final String path;
+		private final String tableName;
+		private final String[] columnNames;
+		private final String[] condition;
+		private final boolean isAggregate;
+
+		Select(String tableName, String[] columnNames, String[] condition) {
+			super(condition);
+			this.path = tableName.contains("davisbase") ? "data/catalog" : "data/user_data";
+			this.tableName = tableName;
+			this.columnNames = columnNames;
+			this.condition = condition;
+			this.isAggregate = columnNames[0].indexOf('(') != -1;
+		}
+
+		@Override
+		protected void run(String[] parameters) throws Exception {
+			String[] boundCondition = bind(condition, parameters, new int[1]);
+			if (isAggregate)
+				Stub.aggregate(path, tableName, columnNames, boundCondition);
+			else
+				Stub.select(path, tableName, columnNames, boundCondition);
+		}
+	}
+
+	/**
+	 * INSERT INTO table_name [( column_list )] VALUES ( value_list ), ...
+	 */
+	static class Insert extends Plan {
+		private final String tableName;
+		// null for all the columns of the table, in order
+		private final String[] columnNames;
+		private final String[][] rows;
+
+		Insert(String tableName, String[] columnNames, String[][] rows) {
+			super(rows);
+			this.tableName = tableName;
+			this.columnNames = columnNames;
+			this.rows = rows;
+		}
+
+		@Override
+		protected void run(String[] parameters) throws Exception {
+			int[] next = new int[1];
+			List<String[]> boundRows = new ArrayList<>(rows.length);
+			for (String[] values : rows)
+				boundRows.add(bind(values, parameters, next));
+			String[] names = columnNames;
+			if (names == null)
+				names = Catalog.getInstance().getSchema(tableName).getColumnNames().values().toArray(new String[0]);
+			Stub.insert("data/user_data", tableName, names, boundRows);
+		}
+	}
+
+	/**
+	 * UPDATE table_name SET column_name = value WHERE condition.
+	 */
+	static class Update extends Plan {
+		private final String tableName;
+		private final String[] data;
+		private final String[] condition;
+
+		Update(String tableName, String[] data, String[] condition) {
+			super(data, condition);
+			this.tableName = tableName;
+			this.data = data;
+			this.condition = condition;
+		}
+
+		@Override
+		protected void run(String[] parameters) throws Exception {
+			int[] next = new int[1];
+			String[] boundData = bind(data, parameters, next);
+			Stub.update("data/user_data", tableName, boundData, bind(condition, parameters, next));
+		}
+	}
+
+	/**
+	 * DELETE FROM table_name WHERE condition.
+	 */
+	static class Delete extends Plan {
+		private final String tableName;
+		private final String[] condition;
+
+		Delete(String tableName, String[] condition) {
+			super(condition);
+			this.tableName = tableName;
+			this.condition = condition;
+		}
+
+		@Override
+		protected void run(String[] parameters) throws Exception {
+			Stub.delete("data/user_data", tableName, bind(condition, parameters, new int[1]));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of parsed statements, keyed by their text, so a statement
+ * sent again, or a prepared statement executed with new parameters, is not
+ * parsed again. Holds at most as many plans as the davisbase.plan.cache.size
+ * system property allows, 256 by default, and drops the least recently used
+ * plan to make room for a new one.
+ */
+public class PlanCache {
+
+	private static final int DEFAULT_SIZE = 256;
+	private static final PlanCache instance = new PlanCache(Integer.getInteger("davisbase.plan.cache.size", DEFAULT_SIZE));
+
+	private final Map<String, Plan> plans;
+
+	public PlanCache(final int maxSize) {
+		// access ordered, so the least recently used plan is the eldest
+		this.plans = new LinkedHashMap<String, Plan>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public static PlanCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The plan of the statement, parsed and cached if it is not cached yet. The
+	 * statement is parsed outside the lock.
+	 */
+	public Plan get(String statement) throws Exception {
+		synchronized (this) {
+			Plan plan = plans.get(statement);
+			if (plan != null)
+				return plan;
+		}
+		Plan plan = Plan.parse(statement);
+		synchronized (this) {
+			plans.put(statement, plan);
+		}
+		return plan;
+	}
+}
@@ -0,0 +1,317 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A WHERE condition compiled once for a table. The condition comes split on
+ * spaces, as comparisons "column operator value" joined by AND and OR, where
+ * AND binds tighter than OR. Each comparison has its column resolved to a
+ * position in the cell and its value parsed as the type of that column, so a
+ * row is tested on the page without decoding it.
+ */
+public abstract class Predicate {
+
+	/**
+	 * Matches every row, used for a statement without a WHERE clause.
+	 */
+	public static final Predicate ALL = new Predicate() {
+		@Override
+		public boolean matches(Page p, int recLoc) {
+			return true;
+		}
+	};
+
+	/**
+	 * Tests the table leaf cell at recLoc.
+	 */
+	public abstract boolean matches(Page p, int recLoc) throws Exception;
+
+	/**
+	 * The comparisons every matching row has to satisfy, which a plan can answer
+	 * from row_id or an index before the rest is tested.
+	 */
+	public List<Comparison> getConjuncts() {
+		return Collections.emptyList();
+	}
+
+	public static Predicate compile(TableSchema schema, String[] condition) throws Exception {
+		List<String> tokens = new ArrayList<>();
+		for (String token : condition)
+			if (!token.trim().isEmpty())
+				tokens.add(token.trim());
+		if (tokens.isEmpty())
+			return ALL;
+
+		List<Predicate> anyOf = new ArrayList<>();
+		List<Predicate> allOf = new ArrayList<>();
+		int i = 0;
+		while (true) {
+			if (i + 3 > tokens.size())
+				throw new Exception("Format Error: condition has to be column_name operator value, got '"
+						+ String.join(" ", tokens.subList(i, tokens.size())) + "'.");
+			allOf.add(new Comparison(schema, tokens.get(i), tokens.get(i + 1), tokens.get(i + 2)));
+			i += 3;
+			if (i == tokens.size())
+				break;
+			String connective = tokens.get(i++);
+			if (connective.equals("or")) {
+				anyOf.add(And.of(allOf));
+				allOf = new ArrayList<>();
+			} else if (!connective.equals("and")) {
+				throw new Exception("Format Error: expected AND or OR, got '" + connective + "'.");
+			}
+		}
+		anyOf.add(And.of(allOf));
+		return anyOf.size() == 1 ? anyOf.get(0) : new Or(anyOf);
+	}
+
+	/**
+	 * column operator value.
+	 */
+	public static class Comparison extends Predicate {
+		private static final int EQ = 0;
+		private static final int NE = 1;
+		private static final int LT = 2;
+		private static final int LE = 3;
+		private static final int GT = 4;
+		private static final int GE = 5;
+
+		private final int ordinalPosition;
+		private final String operator;
+		private final String operand;
+		private final int op;
+		// offset of the column in the cell values, -1 when a text column before it
+		// makes the offset differ from row to row
+		private final int offset;
+		private final boolean isText;
+		// value, parsed as the type of the column
+		private long longOperand;
+		private double doubleOperand;
+		private String textOperand;
+
+		Comparison(TableSchema schema, String columnName, String operator, String operand) throws Exception {
+			int ordinal = -1;
+			for (Map.Entry<Integer, String> entry : schema.getColumnNames().entrySet())
+				if (entry.getValue().equals(columnName))
+					ordinal = entry.getKey();
+			if (ordinal == -1)
+				throw new Exception("Unknown column '" + columnName + "' in condition.");
+			this.ordinalPosition = ordinal;
+			this.operator = operator;
+			this.operand = operand;
+
+			switch (operator) {
+			case "=":
+				op = EQ;
+				break;
+			case "<>":
+				op = NE;
+				break;
+			case "<":
+				op = LT;
+				break;
+			case "<=":
+				op = LE;
+				break;
+			case ">":
+				op = GT;
+				break;
+			case ">=":
+				op = GE;
+				break;
+			default:
+				throw new Exception("Unknown comparision operation '" + operator + "'.");
+			}
+
+			String dataType = (ordinal == 1) ? "int" : schema.getDataTypes().get(ordinal).trim();
+			switch (dataType) {
+			case "real":
+			case "double":
+				doubleOperand = Double.parseDouble(operand);
+				break;
+			case "datetime":
+				longOperand = PayLoad.parseDate((byte) 0x0A, operand);
+				break;
+			case "date":
+				longOperand = PayLoad.parseDate((byte) 0x0B, operand);
+				break;
+			case "text":
+				textOperand = operand;
+				break;
+			default:
+				longOperand = Long.parseLong(operand);
+				break;
+			}
+			isText = dataType.equals("text");
+			if (isText && op != EQ && op != NE)
+				throw new Exception("Format Error: operator " + operator + " is not supported on the TEXT column "
+						+ columnName + ".");
+
+			int fixed = 0;
+			for (Map.Entry<Integer, String> entry : schema.getDataTypes().entrySet()) {
+				if (entry.getKey() <= 1 || entry.getKey() >= ordinal)
+					continue;
+				if (entry.getValue().trim().equals("text")) {
+					fixed = -1;
+					break;
+				}
+				fixed += Table.getDataTypeSize(entry.getValue(), 0);
+			}
+			this.offset = fixed;
+		}
+
+		public int getOrdinalPosition() {
+			return ordinalPosition;
+		}
+
+		public String getOperator() {
+			return operator;
+		}
+
+		public String getOperand() {
+			return operand;
+		}
+
+		@Override
+		public List<Comparison> getConjuncts() {
+			return Collections.singletonList(this);
+		}
+
+		@Override
+		public boolean matches(Page p, int recLoc) throws Exception {
+			if (ordinalPosition == 1)
+				return compare(Long.compare(p.getInt(recLoc + 2), longOperand));
+
+			int column = ordinalPosition - 2;
+			int noColumns = p.getByte(recLoc + 6);
+			if (column >= noColumns)
+				return false;
+			byte dataType = p.getByte(recLoc + 7 + column);
+			if (dataType >= 0x00 && dataType <= 0x03)
+				return false;
+
+			int pos = recLoc + 7 + noColumns;
+			if (offset != -1)
+				pos += offset;
+			else
+				for (int i = 0; i < column; i++)
+					pos += Table.getSizeByHeader(p.getByte(recLoc + 7 + i));
+
+			switch (dataType) {
+			case 0x04:
+				return compare(Long.compare(p.getByte(pos), longOperand));
+			case 0x05:
+				return compare(Long.compare(p.getShort(pos), longOperand));
+			case 0x06:
+				return compare(Long.compare(p.getInt(pos), longOperand));
+			case 0x07:
+			case 0x0A:
+			case 0x0B:
+				return compare(Long.compare(p.getLong(pos), longOperand));
+			case 0x08:
+				// a real holds a float, so the value is compared at float precision
+				return compare(compareDouble(p.getFloat(pos), (float) doubleOperand));
+			case 0x09:
+				return compare(compareDouble(p.getDouble(pos), doubleOperand));
+			default:
+				if (!isText)
+					return false;
+				switch (op) {
+				case EQ:
+					return textEquals(p, pos, Table.getSizeByHeader(dataType));
+				case NE:
+					return !textEquals(p, pos, Table.getSizeByHeader(dataType));
+				default:
+					return false;
+				}
+			}
+		}
+
+		private boolean compare(int result) {
+			switch (op) {
+			case EQ:
+				return result == 0;
+			case NE:
+				return result != 0;
+			case LT:
+				return result < 0;
+			case LE:
+				return result <= 0;
+			case GT:
+				return result > 0;
+			default:
+				return result >= 0;
+			}
+		}
+
+		/**
+		 * Compares the stored text with the operand ignoring case, without building
+		 * a string from it.
+		 */
+		private boolean textEquals(Page p, int pos, int length) {
+			if (length != textOperand.length())
+				return false;
+			for (int i = 0; i < length; i++) {
+				char stored = (char) (p.getByte(pos + i) & 0xFF);
+				char operand = textOperand.charAt(i);
+				if (stored != operand && Character.toUpperCase(stored) != Character.toUpperCase(operand)
+						&& Character.toLowerCase(stored) != Character.toLowerCase(operand))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Orders two numbers the way the comparison operators do, so 0.0 equals
+		 * -0.0.
+		 */
+		private static int compareDouble(double a, double b) {
+			return a < b ? -1 : (a > b ? 1 : 0);
+		}
+	}
+
+	private static class And extends Predicate {
+		private final Predicate[] terms;
+
+		private And(List<Predicate> terms) {
+			this.terms = terms.toArray(new Predicate[terms.size()]);
+		}
+
+		static Predicate of(List<Predicate> terms) {
+			return terms.size() == 1 ? terms.get(0) : new And(terms);
+		}
+
+		@Override
+		public boolean matches(Page p, int recLoc) throws Exception {
+			for (Predicate term : terms)
+				if (!term.matches(p, recLoc))
+					return false;
+			return true;
+		}
+
+		@Override
+		public List<Comparison> getConjuncts() {
+			List<Comparison> conjuncts = new ArrayList<>();
+			for (Predicate term : terms)
+				conjuncts.addAll(term.getConjuncts());
+			return conjuncts;
+		}
+	}
+
+	private static class Or extends Predicate {
+		private final Predicate[] terms;
+
+		private Or(List<Predicate> terms) {
+			this.terms = terms.toArray(new Predicate[terms.size()]);
+		}
+
+		@Override
+		public boolean matches(Page p, int recLoc) throws Exception {
+			for (Predicate term : terms)
+				if (term.matches(p, recLoc))
+					return true;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,11 @@
+/**
+ * Rows of a table handed out one at a time, as the scan behind the cursor
+ * reaches them.
+ */
+public interface RecordCursor {
+
+	/**
+	 * Returns the next row, or null once there are no more.
+	 */
+	Cell next() throws Exception;
+}
@@ -0,0 +1,174 @@
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves DavisBase sessions over TCP, started with "java Start --server [port]".
+ * The server listens on the loopback interface, port 5678 unless given, and
+ * runs each connection on a thread of its own.
+ *
+ * Clients send statements terminated by a semicolon, as typed at the prompt.
+ * The server answers each with the lines the statement prints, followed by a
+ * line holding a single dot. Lines of the answer that start with a dot get one
+ * more, which the client strips. "exit;" ends the session, the server keeps
+ * running until it is stopped.
+ */
+public class Server {
+
+	public static final int DEFAULT_PORT = 5678;
+
+	private static final byte[] END_OF_ANSWER = ".\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	public static void start(int port) throws Exception {
+		SessionOutput.install();
+		Stub.InitTable();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					TableRegistry.getInstance().closeAll();
+					BufferPool.getInstance().checkpoint();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}));
+
+		ExecutorService sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "session-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ServerSocket listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("DavisBaseLite listening on " + listener.getLocalSocketAddress());
+		while (true) {
+			final Socket socket = listener.accept();
+			sessions.execute(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the statements of one connection, the same way the prompt runs them.
+	 */
+	private static void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			Scanner statements = new Scanner(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1))
+					.useDelimiter(";");
+			OutputStream answer = new BufferedOutputStream(socket.getOutputStream());
+			PrintStream session = new PrintStream(new DotStuffingOutputStream(answer), false, "ISO-8859-1");
+			try {
+				while (statements.hasNext()) {
+					String userCommand = Start.normalize(statements.next().replace("\n", " ").replace("\r", "").trim());
+					boolean exit = userCommand.equals("exit") || userCommand.equals("quit");
+					SessionOutput.bind(session);
+					try {
+						if (exit)
+							System.out.println("Exiting...");
+						else if (!userCommand.isEmpty())
+							Start.parseUserCommand(userCommand);
+					} finally {
+						SessionOutput.unbind();
+					}
+					session.flush();
+					answer.write(END_OF_ANSWER);
+					answer.flush();
+					if (exit)
+						break;
+				}
+			} finally {
+				Operations.deallocateAll();
+				socket.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Session " + socket.getRemoteSocketAddress() + " ended: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Doubles the dot starting a line, so no line of an answer reads as its end.
+	 */
+	private static class DotStuffingOutputStream extends FilterOutputStream {
+		private boolean lineStart = true;
+
+		DotStuffingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (lineStart && b == '.')
+				out.write('.');
+			out.write(b);
+			lineStart = (b == '\n');
+		}
+	}
+
+	/**
+	 * Stands in for System.out and System.err and sends what a session thread
+	 * prints to that session, everything else to the console.
+	 */
+	private static class SessionOutput extends OutputStream {
+		private static final ThreadLocal<PrintStream> session = new ThreadLocal<>();
+		private final PrintStream console;
+
+		private SessionOutput(PrintStream console) {
+			this.console = console;
+		}
+
+		static void install() {
+			System.setOut(new PrintStream(new SessionOutput(System.out), true));
+			System.setErr(new PrintStream(new SessionOutput(System.err), true));
+		}
+
+		static void bind(PrintStream stream) {
+			session.set(stream);
+		}
+
+		static void unbind() {
+			session.remove();
+		}
+
+		private PrintStream target() {
+			PrintStream stream = session.get();
+			return (stream != null) ? stream : console;
+		}
+
+		@Override
+		public void write(int b) {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			target().flush();
+		}
+	}
+}
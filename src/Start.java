@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Scanner;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -25,8 +26,12 @@ public class Start {
 	static boolean isExit = false;
 	static String path = "data/user_data";
 
-	/* Page size for all files is 512 bytes by default. */
-	static long pageSize = 512;
+	/*
+	 * Page size of new table files, 4096 bytes unless set with
+	 * -Ddavisbase.page.size. CREATE TABLE ... PAGE_SIZE <bytes> overrides it for
+	 * one table.
+	 */
+	static int pageSize = Integer.getInteger("davisbase.page.size", 4096);
 
 	/*
 	 * The Scanner class is used to collect user commands from the prompt There are
@@ -44,6 +49,12 @@ public class Start {
 	public static void main(String[] args) {
 
 		try {
+			/* java Start --server [port] serves sessions over TCP instead */
+			if (args.length > 0 && args[0].equals("--server")) {
+				Server.start(args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_PORT);
+				return;
+			}
+
 			/* Display the welcome screen */
 			splashScreen();
 
@@ -56,10 +67,12 @@ public class Start {
 			while (!isExit) {
 				System.out.print(prompt);
 				/* toLowerCase() renders command case insensitive */
-				userCommand = scanner.next().replace("\n", " ").replace("\r", "").trim().toLowerCase();
+				userCommand = normalize(scanner.next().replace("\n", " ").replace("\r", "").trim());
 				// userCommand = userCommand.replace("\n", "").replace("\r", "");
 				parseUserCommand(userCommand);
 			}
+			TableRegistry.getInstance().closeAll();
+			BufferPool.getInstance().checkpoint();
 			System.out.println("Exiting...");
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
@@ -128,17 +141,36 @@ public class Start {
 		// printDef("Display all records in the table <table_name>.");
 		out.println("SELECT <column_list> FROM <table_name> [WHERE <condition>];");
 		out.println("\tDisplay table records whose optional <condition>");
-		out.println("\tis <column_name> = <value>.\n");
+		out.println("\tis <column_name> = <value>, or such comparisons joined by AND and OR.\n");
+		out.println("SELECT <aggregate_list> FROM <table_name> [WHERE <condition>];");
+		out.println("\tDisplay COUNT(*), or COUNT, SUM, MIN, MAX or AVG ( <column_name> ) over the");
+		out.println("\trecords matching <condition>, leaving out null values.\n");
+		out.println("CREATE TABLE <table_name> ( row_id INT, <column_name> <data_type> [NULL], ... ) [PAGE_SIZE <bytes>];");
+		out.println("\tCreate a table, optionally with its own page size (4096 to 65536 bytes).\n");
+		out.println("CREATE INDEX ON <table_name> ( <column_name> );");
+		out.println("\tIndex a column, so conditions =, <, >, <= and >= on it read only the matching records.\n");
 		out.println("DROP TABLE <table_name>;");
 		out.println("\tRemove table data (i.e. all records) and its schema.\n");
 		out.println("UPDATE TABLE <table_name> SET <column_name> = <value> [WHERE <condition>];");
 		out.println("\tModify records data whose optional <condition> is\n");
+		out.println("VACUUM <table_name>;");
+		out.println("\tRewrite a table compactly and give its unused pages back.\n");
+		out.println("COPY <table_name> FROM | TO '<file_name>' [HEADER];");
+		out.println("\tLoad the records of a CSV file into a table, or write a table to one. A load is");
+		out.println("\tcommitted in batches, one that stops part way keeps the records before the line");
+		out.println("\tit stopped at.\n");
+		out.println("PREPARE <name> AS <statement>;");
+		out.println("\tParse a SELECT, INSERT, UPDATE or DELETE once, with ? for the values given later.\n");
+		out.println("EXECUTE <name> [USING <value>, ...];");
+		out.println("\tRun a prepared statement with the values of its ? placeholders, in order.\n");
+		out.println("DEALLOCATE <name>;");
+		out.println("\tForget a prepared statement.\n");
 		out.println("VERSION;");
 		out.println("\tDisplay the program version.\n");
 		out.println("HELP;");
 		out.println("\tDisplay this help information.\n");
 		out.println("EXIT;");
-		out.println("\tExit the program.\n");
+		out.println("\tExit the program, or end the session when connected to a server.\n");
 		out.println(line("*", 80));
 	}
 
@@ -158,7 +190,35 @@ public class Start {
 		System.out.println(getCopyright());
 	}
 
+	/**
+	 * Lowercases a statement, which renders it case insensitive, all but the file
+	 * name of a COPY and what follows it, as file names are not.
+	 */
+	public static String normalize(String statement) {
+		String lower = statement.toLowerCase();
+		if (!lower.startsWith("copy "))
+			return lower;
+		int quote = lower.indexOf('\'');
+		if (quote == -1 || (lower.indexOf('"') != -1 && lower.indexOf('"') < quote))
+			quote = lower.indexOf('"');
+		return (quote == -1) ? lower : lower.substring(0, quote) + statement.substring(quote);
+	}
+
+	/**
+	 * Runs a statement and ends it, committing its changes, or rolling them back
+	 * if it failed part way.
+	 */
 	public static void parseUserCommand(String userCommand) {
+		boolean completed = false;
+		try {
+			runUserCommand(userCommand);
+			completed = true;
+		} finally {
+			endUserCommand(completed);
+		}
+	}
+
+	private static void runUserCommand(String userCommand) {
 
 		/*
 		 * commandTokens is an array of Strings that contains one token per array
@@ -211,6 +271,25 @@ public class Start {
 			System.out.println("CASE: DELETE");
 			Operations.parseDelete(userCommand);
 			break;
+		case "vacuum":
+			System.out.println("CASE: VACUUM");
+			Operations.parseVacuum(userCommand);
+			break;
+		case "copy":
+			System.out.println("CASE: COPY");
+			Operations.parseCopy(userCommand);
+			break;
+		case "prepare":
+			System.out.println("CASE: PREPARE");
+			Operations.parsePrepare(userCommand);
+			break;
+		case "execute":
+			System.out.println("CASE: EXECUTE");
+			Operations.parseExecute(userCommand);
+			break;
+		case "deallocate":
+			Operations.parseDeallocate(userCommand);
+			break;
 		case "show":
 			System.out.println("CASE: SHOW");
 			Operations.parseShow(userCommand);
@@ -231,5 +310,22 @@ public class Start {
 			break;
 		}
 	}
+
+	private static void endUserCommand(boolean completed) {
+		BufferPool pool = BufferPool.getInstance();
+		try {
+			/* Commit the pages changed by this command to the write-ahead log */
+			if (completed && !pool.hasFailed())
+				pool.commit();
+			else
+				pool.rollback();
+		} catch (IOException e) {
+			System.out.println("Error: Couldn't write changes to disk");
+			e.printStackTrace();
+			pool.rollback();
+		} finally {
+			TableRegistry.getInstance().endStatement();
+		}
+	}
 	
 }
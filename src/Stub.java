@@ -1,16 +1,24 @@
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 public class Stub {
-	private static final int FILESIZE = 512;
+	private static final int LOAD_BATCH_ROWS = 10000;
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
 	
-	static void InitTable() throws IOException{
+	static void InitTable() throws Exception{
 		//create directories 
 		File catalog = new File("data/catalog");
 		catalog.mkdirs();
@@ -18,25 +26,13 @@ public class Stub {
 		File user_data = new File("data/user_data");
 		user_data.mkdirs();
 		
+		int replayed = WriteAheadLog.getInstance().recover();
+		if (replayed > 0)
+			System.out.println("Replayed " + replayed + " statements from the write-ahead log.");
+		
 		if(!tableExists("data/catalog","davisbase_tables")) {
 			System.out.println("creating davisbase_tables table");
-			RandomAccessFile binaryFile = new RandomAccessFile("data/catalog/davisbase_tables.tbl", "rw");
-			binaryFile.setLength(0);
-			binaryFile.setLength(FILESIZE);
-			
-			binaryFile.seek(0);
-			binaryFile.writeByte(0x0D);
-			
-			binaryFile.seek(1);
-			binaryFile.writeByte(0x00);
-
-			binaryFile.seek(2);
-			binaryFile.writeShort(512);
-
-			binaryFile.seek(4);
-			binaryFile.writeInt(0xFFFFFFFF);
-			
-			binaryFile.close();
+			createTableFile("data/catalog", "davisbase_tables", Start.pageSize);
 			
 		}else {
 			System.out.println("davisbase_tables already exists");
@@ -44,22 +40,7 @@ public class Stub {
 		
 		if(!tableExists("data/catalog","davisbase_columns")) {
 			System.out.println("creating davisbase_columns table");
-			RandomAccessFile binaryFile= new RandomAccessFile("data/catalog/davisbase_columns.tbl", "rw");
-			binaryFile.setLength(0);
-			binaryFile.setLength(FILESIZE);
-			
-			binaryFile.seek(0);
-			binaryFile.writeByte(0x0D);
-			
-			binaryFile.seek(1);
-			binaryFile.writeByte(0x00);
-
-			binaryFile.seek(2);
-			binaryFile.writeShort(512);
-
-			binaryFile.seek(4);
-			binaryFile.writeInt(0xFFFFFFFF);
-			binaryFile.close();
+			createTableFile("data/catalog", "davisbase_columns", Start.pageSize);
 			
 			
 			try {
@@ -83,7 +64,22 @@ public class Stub {
 			System.out.println("davisbase_columns already exists");
 		}
 		
-				
+		Catalog.getInstance().load();
+		try {
+			BufferPool.getInstance().commit();
+		} finally {
+			TableRegistry.getInstance().endStatement();
+		}
+	}
+	
+	/**
+	 * Creates an empty table file with pages of the given size.
+	 */
+	static void createTableFile(String path, String tableName, int pageSize) throws Exception {
+		TableRegistry.getInstance().close(path, tableName);
+		Table table = new Table();
+		table.createFile(path, tableName, pageSize);
+		table.closeFile();
 	}
 	
 	static Boolean tableExists(String path,String tableName) {
@@ -113,21 +109,28 @@ public class Stub {
 					columnMeta[5] = "NO";
 				InsertToMetaColumns(columnMeta);
 			}
+			Catalog.getInstance().invalidate(tableName);
 			
 		} catch (Exception e) {
+			BufferPool.getInstance().fail();
 			System.out.println("Insert to meta--catch "+ tableName);
 			System.out.println("Failed to create Table.");
 		}
 	}	
 	private static void InsertToMetaTables(String tableName){
 		String path = "data/catalog";
-		Table metaTable = new Table();
 		try {
-			metaTable.initTable(path, "davisbase_tables");
-		    metaTable.InsertDataToMeta(new String[] { "row_id", "tableName" },
-				new String[] { String.valueOf(metaTable.fetchNextRowID()), tableName });
+			Table metaTable = TableRegistry.getInstance().acquire(path, "davisbase_tables");
+			metaTable.latchExclusive();
+			try {
+				metaTable.InsertDataToMeta(new String[] { "row_id", "tableName" },
+						new String[] { String.valueOf(metaTable.fetchNextRowID()), tableName });
+			} finally {
+				TableRegistry.getInstance().release(path, "davisbase_tables");
+			}
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
+			BufferPool.getInstance().fail();
 			System.out.println("Error occured while Insert to meta tables");
 			e.printStackTrace();
 		}
@@ -135,24 +138,33 @@ public class Stub {
 
 	private static void InsertToMetaColumns(String[] columnData){
 		String path = "data/catalog";
-		Table metaColumn = new Table();
+		Table metaColumn;
 		try {
-			metaColumn.initTable(path, "davisbase_columns");
+			metaColumn = TableRegistry.getInstance().acquire(path, "davisbase_columns");
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
+			BufferPool.getInstance().fail();
 			System.out.println("InsertToMetaColumns init failed");
 			e.printStackTrace();
+			return;
 		}
 		
 		//insert both meta tables data into both meta tables
 		try {
+			metaColumn.latchExclusive();
 			metaColumn.InsertDataToMeta(new String[] { "row_id", "table_name",
 					"column_name", "data_type", "ordinal_position", "is_nullable" }, columnData );
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
+			BufferPool.getInstance().fail();
 			System.out.println("InsertDataToMetaColumns failed");
 			e.printStackTrace();
 		}
+		try {
+			TableRegistry.getInstance().release(path, "davisbase_columns");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	public static void select(String path, String tableName, String[] columnNames, String[] condition){
@@ -161,12 +173,11 @@ public class Stub {
 			System.out.println(tableName + " Table does not exist.");
 			return;
 		}
-		Table table = new Table();
 		try {
-		table.initTable(path, tableName);
-		Map<Integer, Cell> data = table.selectRecords(columnNames, condition);
-		
-		Set<Entry<Integer, Cell>> dataSet = data.entrySet();
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchShared();
+		try {
+		RecordCursor cursor = table.openCursor(columnNames, condition);
 
 		List<String> colmns = new ArrayList<>();
 		colmns.addAll(table.getColumnNames().values());
@@ -186,8 +197,7 @@ public class Stub {
 		System.out.println(colNames.toString());
 
 		int count = 0;
-		for (Map.Entry<Integer, Cell> entry : dataSet) {
-			Cell cellRecord = entry.getValue();
+		for (Cell cellRecord = cursor.next(); cellRecord != null; cellRecord = cursor.next()) {
 			PayLoad cellPayLoad = cellRecord.getPayload();
 
 			StringBuffer sb = new StringBuffer();
@@ -201,12 +211,53 @@ public class Stub {
 			count++;
 		}
 		System.out.println("\nFound total of " + count + " records.");
+		} finally {
+			table.unlatchShared();
+			TableRegistry.getInstance().release(path, tableName);
+		}
 		}catch (Exception e) {
 			System.out.println("Error occured while initializing table");
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Prints aggregates such as count(*) or sum(column_name) over the rows matching
+	 * the condition. A count(*) of all the rows comes from the table header and no
+	 * row is read.
+	 */
+	public static void aggregate(String path, String tableName, String[] expressions, String[] condition)
+			throws Exception {
+		File file = new File(path + "/" + tableName + ".tbl");
+		if (!file.exists()) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchShared();
+		try {
+			String[] results;
+			if (expressions.length == 1 && expressions[0].equals("count(*)") && condition.length == 0)
+				results = new String[] { Integer.toString(table.fetchNoRecords()) };
+			else
+				results = table.aggregate(expressions, condition);
+
+			StringBuffer names = new StringBuffer();
+			StringBuffer values = new StringBuffer();
+			for (int i = 0; i < expressions.length; i++) {
+				names.append(expressions[i] + " | ");
+				values.append(results[i] + " | ");
+			}
+			System.out.println(names.toString());
+			System.out.println(values.toString());
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		} finally {
+			table.unlatchShared();
+			TableRegistry.getInstance().release(path, tableName);
+		}
+	}
+
 	public static boolean Contains(String[] array, String item) {
 		for (String element : array)
 			if (item.trim().equalsIgnoreCase(element.trim()))
@@ -214,74 +265,234 @@ public class Stub {
 		return false;
 	}
 	
-	public static void insert(String path, String tableName, String[] columnNames, String[] values) throws Exception {
-		Table table = new Table();
-		table.initTable(path, tableName);
-		for(int i=0;i<columnNames.length;i++)
-		System.out.println("col-names--- "+columnNames[i]);
-		
-		for(int i=0;i<values.length;i++)
-			System.out.println("values--- "+values[i]);
-		
-		table.insertToLeaf(columnNames, values);
-		System.out.println("Successfully inserted the record.");
+	public static void insert(String path, String tableName, String[] columnNames, List<String[]> rows) throws Exception {
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchExclusive();
+		try {
+			int total = table.insertRows(columnNames, rows);
+			if (total == 1)
+				System.out.println("Successfully inserted the record.");
+			else
+				System.out.println("Successfully inserted " + total + " records.");
+		} finally {
+			TableRegistry.getInstance().release(path, tableName);
+		}
 	}
-	
-	public static void update(String path, String tableName, String[] data, String[] condition) throws Exception {
-		Table table = new Table();
-		table.initTable(path, tableName);
-		Map<Integer, Cell> filteredData = table.selectRecords(new String[] { "*" }, condition);
-		Map<Integer, String> columns = table.getColumnNames();
-		int total = filteredData.size();
-
-		for (Map.Entry<Integer, Cell> entry : filteredData.entrySet()) {
-			Cell cell = entry.getValue();
-			PayLoad payLoad = cell.getPayload();
-			String[] colNames = columns.values().toArray(new String[0]);
-			int rowid = cell.getRowId();
 
-			String[] payLoadData = new String[payLoad.getData().length + 1];
-			payLoadData[0] = String.valueOf(rowid);
-			for (int i = 0; i < payLoad.getData().length; i++)
-			{	
-				payLoadData[i + 1] = payLoad.getData()[i];
-				//System.out.println(payLoadData[i + 1]+" "+(i+1));
+	/**
+	 * Appends rows to a table from a program, each with its values in table order
+	 * and row_id first, counting the rows loaded in loaded[0]. Rows are checked
+	 * as they come, go through Table.appendRows and are committed every
+	 * LOAD_BATCH_ROWS rows, so a large load does not hold all of its pages in the
+	 * BufferPool. The load is not atomic: a row that can not be stored, or an
+	 * exception from rows, stops it once the rows before are loaded and
+	 * committed, and a crash keeps the batches committed before. The table stays
+	 * latched until the caller ends the statement with
+	 * TableRegistry.endStatement.
+	 */
+	public static void bulkLoad(String path, String tableName, Iterator<String[]> rows, int[] loaded)
+			throws Exception {
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchExclusive();
+		try {
+			List<String[]> batch = new ArrayList<>(LOAD_BATCH_ROWS);
+			try {
+				while (rows.hasNext()) {
+					String[] row = rows.next();
+					table.checkRow(row);
+					batch.add(row);
+					if (batch.size() == LOAD_BATCH_ROWS)
+						loadBatch(table, batch, loaded);
+				}
+			} catch (Exception e) {
+				loadBatch(table, batch, loaded);
+				throw e;
 			}
-			
-			int index = getIndex(colNames, data[0]);
-			//System.out.println("--$--"+index);
-			payLoadData[index] = data[2];
-			table.updateToLeaf(colNames, payLoadData, cell.getPageNumber(), cell.getLocation(), rowid);
+			loadBatch(table, batch, loaded);
+		} finally {
+			TableRegistry.getInstance().release(path, tableName);
 		}
-		System.out.println("Total of " + total + " records were updated");
+	}
+
+	private static void loadBatch(Table table, List<String[]> batch, int[] loaded) throws Exception {
+		if (batch.isEmpty())
+			return;
+		loaded[0] += table.appendRows(batch.iterator());
+		batch.clear();
+		BufferPool.getInstance().commit();
 	}
 	
-	private static int getIndex(String[] columns, String column) {
-		for (int i = 0; i < columns.length; i++) {
-			if (column.trim().equalsIgnoreCase(columns[i].trim()))
-				return i;
+	public static void update(String path, String tableName, String[] data, String[] condition) throws Exception {
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchExclusive();
+		try {
+			int total = table.updateRecords(data[0], data[2], condition);
+			System.out.println("Total of " + total + " records were updated");
+		} finally {
+			TableRegistry.getInstance().release(path, tableName);
 		}
-		return -1;
 	}
 	
 	public static void delete(String path, String tableName, String[] condition) throws Exception {
-		Table table = new Table();
-		table.initTable(path, tableName);
-		Map<Integer, Cell> filteredData = table.selectRecords(new String[] { "*" }, condition);
-		int total = filteredData.size();
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchExclusive();
+		try {
+			int total = table.deleteRecords(condition);
+			System.out.println("Total of " + total + " records were deleted from "+ tableName);
+		} finally {
+			TableRegistry.getInstance().release(path, tableName);
+		}
+	}
+
+	/**
+	 * Loads the records of a CSV file into a table through bulkLoad, reading the
+	 * file as it goes. A record holds a value for every column in table order,
+	 * row_id first, and like a row_id given to INSERT it is replaced by a new one.
+	 * The first record is skipped when the file has a header. A record that can
+	 * not be stored stops the load, with the records before it loaded, and the
+	 * exception thrown says how many they were and the line it stopped at.
+	 */
+	public static void copyFrom(String path, String tableName, String fileName, boolean header) throws Exception {
+		if (!tableExists(path, tableName)) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		if (path.contains("catalog"))
+			throw new Exception("can not copy into Meta tables.");
+		final int columns = Catalog.getInstance().getSchema(tableName).getColumnNames().size();
+		try (final LineNumberReader in = new LineNumberReader(
+				new InputStreamReader(new FileInputStream(fileName), StandardCharsets.ISO_8859_1), COPY_BUFFER_SIZE)) {
+			if (header)
+				Csv.readRecord(in);
+			int[] loaded = new int[1];
+			// line the record read last ends on
+			final int[] line = new int[1];
+			try {
+				bulkLoad(path, tableName, new Iterator<String[]>() {
+					private String[] next;
+
+					@Override
+					public boolean hasNext() {
+						if (next == null) {
+							try {
+								line[0] = in.getLineNumber() + 1;
+								next = Csv.readRecord(in);
+								line[0] = in.getLineNumber();
+								if (next != null && next.length != columns)
+									throw new IOException("The record has " + next.length + " values, expected "
+											+ columns + ".");
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}
+						return next != null;
+					}
+
+					@Override
+					public String[] next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						String[] record = next;
+						next = null;
+						return record;
+					}
+				}, loaded);
+			} catch (Exception e) {
+				Throwable cause = (e instanceof UncheckedIOException) ? e.getCause() : e;
+				throw new Exception("Copied " + loaded[0] + " records from " + fileName + " to " + tableName
+						+ ", stopped at line " + line[0] + ": " + cause.getMessage());
+			}
+			System.out.println("Copied " + loaded[0] + " records from " + fileName + " to " + tableName + ".");
+		}
+	}
+
+	/**
+	 * Writes the rows of a table to a CSV file, row_id first, in row_id order. The
+	 * rows are read off the leaves as they are written, so a table of any size
+	 * is copied with one leaf in memory at a time.
+	 */
+	public static void copyTo(String path, String tableName, String fileName, boolean header) throws Exception {
+		if (!tableExists(path, tableName)) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchShared();
+		try (Writer out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.ISO_8859_1), COPY_BUFFER_SIZE)) {
+			String[] fields = table.getColumnNames().values().toArray(new String[0]);
+			if (header)
+				Csv.writeRecord(out, fields);
+			RecordCursor cursor = table.openCursor(new String[] { "*" }, new String[0]);
+			int count = 0;
+			for (Cell cell = cursor.next(); cell != null; cell = cursor.next()) {
+				fields[0] = String.valueOf(cell.getRowId());
+				String[] data = cell.getPayload().getData();
+				System.arraycopy(data, 0, fields, 1, data.length);
+				Csv.writeRecord(out, fields);
+				count++;
+			}
+			System.out.println("Copied " + count + " records from " + tableName + " to " + fileName + ".");
+		} finally {
+			table.unlatchShared();
+			TableRegistry.getInstance().release(path, tableName);
+		}
+	}
 
-		for (Map.Entry<Integer, Cell> entry : filteredData.entrySet()) {
-			Cell rec = entry.getValue();
-			table.deleteRec(rec.getPageNumber(), rec.getLocation());
+	/**
+	 * Rewrites a table compactly and gives the pages it no longer needs back to
+	 * the file system, once the rewrite is committed.
+	 */
+	public static void vacuum(String path, String tableName) throws Exception {
+		if (!tableExists(path, tableName)) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchExclusive();
+		try {
+			int before = table.getPageCount();
+			int after = table.vacuum();
+			BufferPool.getInstance().commit();
+			table.truncate(after);
+			System.out.println("Vacuumed " + tableName + " from " + before + " to " + after + " pages.");
+		} finally {
+			TableRegistry.getInstance().release(path, tableName);
+		}
+	}
+
+	public static void createIndex(String path, String tableName, String columnName) throws Exception {
+		if (!tableExists(path, tableName)) {
+			System.out.println(tableName + " Table does not exist.");
+			return;
+		}
+		Table table = TableRegistry.getInstance().acquire(path, tableName);
+		table.latchExclusive();
+		try {
+			table.createIndex(columnName);
+			System.out.println("Created index on " + tableName + "." + columnName + ".");
+		} finally {
+			TableRegistry.getInstance().release(path, tableName);
 		}
-		System.out.println("Total of " + total + " records were deleted from "+ tableName);
 	}
 
 	public static void dropTable(String path, String tableName) throws Exception {
-		delete("data/catalog", "davisbase_columns", new String[] { "table_name", "=", tableName });
+		// the catalog tables stay latched until the statement ends, so they are
+		// latched in the order CREATE TABLE latches them, davisbase_tables first
 		delete("data/catalog", "davisbase_tables", new String[] { "table_name", "=", tableName });
+		delete("data/catalog", "davisbase_columns", new String[] { "table_name", "=", tableName });
+		Catalog.getInstance().invalidate(tableName);
+		TableRegistry.getInstance().close(path, tableName);
+
+		File[] indexFiles = new File(path).listFiles();
+		for (File indexFile : (indexFiles == null) ? new File[0] : indexFiles)
+			if (indexFile.getName().startsWith(tableName + ".") && indexFile.getName().endsWith(".ndx")) {
+				BufferPool.getInstance().discard(indexFile.getPath());
+				indexFile.delete();
+			}
 
 		File file = new File(path + "/" + tableName + ".tbl");
+		BufferPool.getInstance().discard(file.getPath());
 		if (!file.delete())
 			System.out.println("The table is successfully removed from Meta, but could not be delete from FileSystem.");
 		else
@@ -1,369 +1,499 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.*;
-import java.time.temporal.TemporalAccessor;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Table {
 	private String TableName = "";
 	private String Path = "";
 	private boolean IsMetaTable = false;
-	private static final int FILESIZE = 512;
+	public static final int MIN_PAGE_SIZE = 4096;
+	public static final int MAX_PAGE_SIZE = 65536;
+	// the serial type of a text value, 0x0C plus its length, must fit in a byte
+	public static final int MAX_TEXT_LENGTH = 0xFF - 0x0C;
+	private static final int LEGACY_PAGE_SIZE = 512;
+	// page header: page type (1), unused (1), cell count (2), start of the cell
+	// content area (4), next leaf or rightmost child page (4), followed by a 2
+	// byte pointer per cell. A page on the free list has type FREE_PAGE_TYPE and
+	// the next free page, or 0, as its next page.
+	private static final int CELL_COUNT = 2;
+	private static final int CONTENT_START = 4;
+	private static final int NEXT_PAGE = 8;
+	private static final int PAGE_HEADER_SIZE = 12;
+	private static final int FREE_PAGE_TYPE = 0x01;
+	// table header, kept in page 0 after the fields PageFile owns: root page (4),
+	// last leaf page (4), largest row_id handed out (4), number of rows (4),
+	// first page of the free list or 0 (4)
+	private static final int ROOT_PAGE = 16;
+	private static final int LAST_LEAF_PAGE = 20;
+	private static final int MAX_ROW_ID = 24;
+	private static final int ROW_COUNT = 28;
+	private static final int FREE_PAGE = 32;
+	// full scans of tables with at least PARALLEL_SCAN_MIN_LEAVES leaves are split
+	// over davisbase.scan.threads threads, one for each core by default, in tasks
+	// of LEAVES_PER_TASK leaves
+	private static final int SCAN_THREADS = Integer.getInteger("davisbase.scan.threads",
+			Runtime.getRuntime().availableProcessors());
+	private static final int LEAVES_PER_TASK = 8;
+	private static final int PARALLEL_SCAN_MIN_LEAVES = 2 * LEAVES_PER_TASK;
+	private static final ForkJoinPool SCAN_POOL = (SCAN_THREADS > 1) ? new ForkJoinPool(SCAN_THREADS) : null;
+	private int pageSize;
 	private int NoPages = 0;
-	private RandomAccessFile tableFile;
-	private Map<Integer, Cell> Columns;
+	private PageFile tableFile;
+	private TableSchema Schema;
+	// secondary indexes by the ordinal position of their column
+	private Map<Integer, Index> Indexes = new LinkedHashMap<>();
+	// shared by the statements reading the table, held exclusively by a statement
+	// changing it until that statement commits
+	private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+	// largest row_id handed out, the MAX_ROW_ID header field once its row is in
+	private final AtomicInteger maxRowId = new AtomicInteger();
 
 	public void initTable(String path, String tableName) throws Exception {
 		this.TableName = tableName;
 		this.Path = path;
-		tableFile = new RandomAccessFile(this.Path + "/" + this.TableName + ".tbl", "rw");
+		String fileName = this.Path + "/" + this.TableName + ".tbl";
+		if (PageFile.isHeaderless(fileName))
+			upgradeLegacyFile(fileName, Start.pageSize);
+		tableFile = PageFile.open(fileName);
+		pageSize = tableFile.getPageSize();
 		IsMetaTable = this.Path.contains("catalog");
-		NoPages = (int) tableFile.length() / FILESIZE;
+		NoPages = tableFile.getPageCount();
+		if (tableFile.getPage(0).getInt(LAST_LEAF_PAGE) == 0)
+			rebuildTableHeader();
+		maxRowId.set(tableFile.getPage(0).getInt(MAX_ROW_ID));
+		Schema = Catalog.getInstance().getSchema(TableName);
 		if (!IsMetaTable)
-			fetchMetaData();
+			openIndexes();
 	}
 
-	private void fetchMetaData() throws Exception {
-		// fetch root_page.
-		if (!IsMetaTable) {
-			Table metaTable = new Table();
-			metaTable.initTable("data/catalog", "davisbase_columns");
-			Columns = metaTable.selectRecords(new String[] { "*" }, // Columns needed
-					new String[] { "table_name", "=", TableName }); // where tableName = TableName condition
+	private void openIndexes() throws IOException {
+		for (Map.Entry<Integer, String> column : getColumnNames().entrySet())
+			if (Index.exists(Path, TableName, column.getValue()))
+				Indexes.put(column.getKey(), Index.open(Path, TableName, column.getValue()));
+	}
+
+	/**
+	 * Builds an index on a column from the rows already in the table. From then on
+	 * it is kept up to date by every insert, update and delete.
+	 */
+	public void createIndex(String columnName) throws Exception {
+		ColumnData column = null;
+		for (ColumnData col : getColumnData().values())
+			if (col.column_name.trim().equalsIgnoreCase(columnName.trim()))
+				column = col;
+		if (column == null)
+			throw new Exception("Could not find column '" + columnName + "'");
+		if (column.ordinal_position == 1)
+			throw new Exception("Rows are already stored in row_id order, row_id needs no index.");
+		if (Indexes.containsKey(column.ordinal_position))
+			throw new Exception("An index on " + TableName + "." + column.column_name + " already exists.");
+
+		Index index = Index.create(Path, TableName, column.column_name, column.data_type, pageSize);
+		int page = 1;
+		while (page != 0xFFFFFFFF) {
+			for (Cell cell : getPageContent(page).values()) {
+				PayLoad payload = cell.getPayload();
+				index.insert(payload.getDataTypes()[column.ordinal_position - 2],
+						payload.getData()[column.ordinal_position - 2], cell.getRowId());
+			}
+			page = fetchNextLeafPage(page);
 		}
+		Indexes.put(column.ordinal_position, index);
+	}
+
+	/**
+	 * Adds a row to every index of the table. The serial types and values are
+	 * those of the columns after row_id.
+	 */
+	private void addToIndexes(int rowId, byte[] dataTypes, String[] data) throws IOException {
+		for (Map.Entry<Integer, Index> index : Indexes.entrySet())
+			index.getValue().insert(dataTypes[index.getKey() - 2], data[index.getKey() - 2], rowId);
+	}
+
+	private void removeFromIndexes(int rowId, byte[] dataTypes, String[] data) throws IOException {
+		for (Map.Entry<Integer, Index> index : Indexes.entrySet())
+			index.getValue().delete(dataTypes[index.getKey() - 2], data[index.getKey() - 2], rowId);
 	}
 
 	public boolean isMeta() {
 		return IsMetaTable;
 	}
 
-	public void createFile(String path, String tableName) throws IOException {
-		createTableFile(path, tableName);
+	/**
+	 * Creates an empty table file whose pages are pageSize bytes, replacing any
+	 * file of the same name.
+	 */
+	public void createFile(String path, String tableName, int pageSize) throws Exception {
+		if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1)
+			throw new Exception("Page size must be a power of two between " + MIN_PAGE_SIZE + " and " + MAX_PAGE_SIZE
+					+ " bytes.");
+		this.TableName = tableName;
+		this.Path = path;
+		IsMetaTable = this.Path.contains("catalog");
+		createTableFile(path, tableName, pageSize);
 		setLeafHeaders(1);
+		setRootPage(1);
+		Page header = tableFile.getPage(0);
+		header.putInt(LAST_LEAF_PAGE, 1);
+		header.putInt(MAX_ROW_ID, 0);
+		header.putInt(ROW_COUNT, 0);
 	}
 
-	private void createTableFile(String path, String tableName) throws IOException {
-		tableFile = new RandomAccessFile(path + "/" + tableName + ".tbl", "rw");
-		tableFile.setLength(0);
-		tableFile.setLength(FILESIZE);
+	private void createTableFile(String path, String tableName, int pageSize) throws IOException {
+		tableFile = PageFile.create(path + "/" + tableName + ".tbl", pageSize);
+		this.pageSize = pageSize;
+		tableFile.allocatePage();
 		this.NoPages = 1;
 	}
 
-	private void setLeafHeaders(int page) throws IOException {
-		int fileBegin = (page - 1) * FILESIZE;
-		tableFile.seek(fileBegin + 0);
-		tableFile.writeByte(0x0D);
-		
-		tableFile.seek(fileBegin + 1);
-		tableFile.writeByte(0x00);
-		
-		tableFile.seek(fileBegin + 2);
-		tableFile.writeShort(512);
+	/**
+	 * Rewrites a table file of the original format, 512 byte pages with no file
+	 * header and one byte cell counts, into the current format. Cells are copied
+	 * unchanged and page numbers are kept, so the page pointers stay valid.
+	 */
+	private static void upgradeLegacyFile(String fileName, int pageSize) throws IOException {
+		RandomAccessFile legacyFile = new RandomAccessFile(fileName, "r");
+		byte[] legacy;
+		try {
+			legacy = new byte[(int) legacyFile.length()];
+			legacyFile.readFully(legacy);
+		} finally {
+			legacyFile.close();
+		}
+
+		PageFile upgraded = PageFile.create(fileName, pageSize);
+		try {
+			ByteBuffer old = ByteBuffer.wrap(legacy);
+			for (int page = 1; page <= legacy.length / LEGACY_PAGE_SIZE; page++) {
+				int base = (page - 1) * LEGACY_PAGE_SIZE;
+				Page p = upgraded.getPage(upgraded.allocatePage());
+				byte pageType = old.get(base);
+				if (pageType != 0x0D && pageType != 0x05)
+					continue;
+				int count = old.get(base + 1) & 0xFF;
+				p.putByte(0, pageType);
+				p.putShort(CELL_COUNT, count);
+				p.putInt(NEXT_PAGE, old.getInt(base + 4));
+				int top = pageSize;
+				for (int i = 0; i < count; i++) {
+					int cellLoc = old.getShort(base + 8 + (i * 2)) & 0xFFFF;
+					int cellSize = (pageType == 0x0D) ? (old.getShort(base + cellLoc) & 0xFFFF) : 8;
+					byte[] cell = new byte[cellSize];
+					System.arraycopy(legacy, base + cellLoc, cell, 0, cellSize);
+					top -= cellSize;
+					p.putBytes(top, cell);
+					p.putShort(PAGE_HEADER_SIZE + (i * 2), top);
+				}
+				p.putInt(CONTENT_START, top);
+			}
+		} finally {
+			upgraded.close();
+		}
+	}
 
-		tableFile.seek(fileBegin + 4);
-		tableFile.writeInt(0xFFFFFFFF);
+	private void setLeafHeaders(int page) throws IOException {
+		Page p = tableFile.getPage(page);
+		p.putByte(0, 0x0D);
+		p.putShort(CELL_COUNT, 0);
+		p.putInt(CONTENT_START, pageSize);
+		p.putInt(NEXT_PAGE, 0xFFFFFFFF);
 	}
 
 	private void setNonLeafHeaders(int page) throws IOException {
-		int fileBegin = (page - 1) * FILESIZE;
-		tableFile.seek(fileBegin + 0);
-		tableFile.writeByte(0x05);
-		
-		tableFile.seek(fileBegin + 1);
-		tableFile.writeByte(0x00);
-
-		tableFile.seek(fileBegin + 2);
-		tableFile.writeShort(512);
-
-		tableFile.seek(fileBegin + 4);
-		tableFile.writeInt(0xFFFFFFFF);
+		Page p = tableFile.getPage(page);
+		p.putByte(0, 0x05);
+		p.putShort(CELL_COUNT, 0);
+		p.putInt(CONTENT_START, pageSize);
+		p.putInt(NEXT_PAGE, 0xFFFFFFFF);
 	}
 
 	public boolean isLeaf(int page) throws IOException {
-		tableFile.seek(((page - 1) * FILESIZE) + 0);
-		return (int) tableFile.readByte() == 0x0D;
+		return (int) tableFile.getPage(page).getByte(0) == 0x0D;
 	}
 
 	public boolean isNode(int page) throws IOException {
-		tableFile.seek(((page - 1) * FILESIZE) + 0);
-		return (int) tableFile.readByte() == 0x05;
+		return (int) tableFile.getPage(page).getByte(0) == 0x05;
 	}
 
 	public Map<Integer, String> getColumnNames() {
-		Map<Integer, String> colNames = new LinkedHashMap<>();
-		if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_columns")) {
-			colNames.put(1, "row_id");
-			colNames.put(2, "table_name");
-			colNames.put(3, "column_name");
-			colNames.put(4, "data_type");
-			colNames.put(5, "ordinal_position");
-			colNames.put(6, "is_nullable");
-		} else if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_tables")) {
-			colNames.put(1, "row_id");
-			colNames.put(2, "table_name");
-		} else {
-			Object[] cols = Columns.values().toArray();
-			for (int i = 0; i < cols.length; i++) {
-				String[] columnData = ((Cell) cols[i]).getPayload().getData();
-				colNames.put(Integer.parseInt(columnData[3]), columnData[1]);
-			}
-		}
-		return colNames;
+		return Schema.getColumnNames();
 	}
 
 	public Map<Integer, String> getColumnDataTypes() {
-		Map<Integer, String> colDataTypes = new LinkedHashMap<>();
-		Object[] cols = Columns.values().toArray();
-		for (int i = 0; i < cols.length; i++) {
-			String[] columnData = ((Cell) cols[i]).getPayload().getData();
-			colDataTypes.put(Integer.parseInt(columnData[3]), columnData[2]);
-		}
-		return colDataTypes;
+		return Schema.getDataTypes();
 	}
 
 	public Map<Integer, String> getColumnNullable() {
-		Map<Integer, String> isNullable = new LinkedHashMap<>();
-		Object[] cols = Columns.values().toArray();
-		for (int i = 0; i < cols.length; i++) {
-			String[] columnData = ((Cell) cols[i]).getPayload().getData();
-			isNullable.put(Integer.parseInt(columnData[3]), columnData[4]);
-		}
-		return isNullable;
+		return Schema.getNullable();
 	}
 
 	public Map<Integer, ColumnData> getColumnData() {
-		Map<Integer, ColumnData> colDetails = new LinkedHashMap<>();
-		Object[] cols = Columns.values().toArray();
-		for (int i = 0; i < cols.length; i++) {
-			String[] columnData = ((Cell) cols[i]).getPayload().getData();
-			colDetails.put(Integer.parseInt(columnData[3]), new ColumnData(columnData[1], columnData[2],
-					Integer.parseInt(columnData[3]), columnData[4].equalsIgnoreCase("yes")));
-		}
-		return colDetails;
+		return Schema.getColumns();
 	}
 
 	public int fetchNoRecords() throws IOException {
-		int page = 1;
-		int total = 0;
-		while (page != 0xFFFFFFFF) {
-			total += getCellCountInPage(page);
-			page = fetchNextLeafPage(page);
-		}
-		return total;
+		return tableFile.getPage(0).getInt(ROW_COUNT);
 	}
 
 	private int getCellCountInPage(int page) throws IOException {
-		tableFile.seek(((page - 1) * FILESIZE) + 1);
-		return (int) tableFile.readByte();
+		return tableFile.getPage(page).getShort(CELL_COUNT) & 0xFFFF;
 	}
 
 	public int fetchNextLeafPage(int page) throws IOException {
-		tableFile.seek(((page - 1) * FILESIZE) + 4); //like 4, 512*1 + 4, 512*2 + 4,....etc
-		return tableFile.readInt();
+		return tableFile.getPage(page).getInt(NEXT_PAGE);
 	}
 
 	public boolean canInsert(int page, int size) throws IOException {
 		// size + 2, considering the pointer to cell in header
-		return (size + 2) < (FILESIZE - headerSize(page) - dataSize(page));
+		return (size + 2) < (pageSize - headerSize(page) - dataSize(page));
+	}
+
+	/**
+	 * Tells whether a cell of the given size fits in the leaf, compacting the leaf
+	 * first when it fits only in the space left behind by deleted cells and by
+	 * cells that were moved or shrunk.
+	 */
+	private boolean makeRoom(int page, int size) throws IOException {
+		if (canInsert(page, size))
+			return true;
+		Page p = tableFile.getPage(page);
+		int[] pointers = getCellPointers(p);
+		int used = 0;
+		for (int cellLoc : pointers)
+			used += p.getShort(cellLoc) & 0xFFFF;
+		if ((size + 2) >= (pageSize - headerSize(page) - used))
+			return false;
+		List<byte[]> cells = new ArrayList<>();
+		for (int cellLoc : pointers) {
+			byte[] cell = new byte[p.getShort(cellLoc) & 0xFFFF];
+			p.getBytes(cellLoc, cell);
+			cells.add(cell);
+		}
+		writeLeafCells(page, cells);
+		return true;
 	}
 
 	private int dataSize(int page) throws IOException {
 		int fstRecLoc = fetchTopRecLoc(page);
-		return FILESIZE - fstRecLoc;
+		return pageSize - fstRecLoc;
 	}
 
 	private int fetchTopRecLoc(int page) throws IOException {
-		tableFile.seek(((page - 1) * FILESIZE) + 2);
-		return (int) tableFile.readShort();
+		return tableFile.getPage(page).getInt(CONTENT_START);
 	}
 
 	public int headerSize(int page) throws IOException {
-		// fixed header size is 8 (1 + 1 + 2 + 4) for leaf or an internal node
+		// the fixed header, PAGE_HEADER_SIZE bytes, and a 2 byte pointer per cell
 		int noRec = getCellCountInPage(page);
-		return 8 + (2 * noRec);
+		return PAGE_HEADER_SIZE + (2 * noRec);
 	}
 
 	private void insertRec(int page, int payLoadSize, Cell dataCell) throws IOException {
-		this.insertRec(page, payLoadSize, dataCell, -1);
-	}
-
-	private void insertRec(int page, int payLoadSize, Cell dataCell, int location) throws IOException {
 		// TopMost Record - data length
-		int newFstRecLoc = fetchTopRecLoc(page) - payLoadSize;
+		Page p = tableFile.getPage(page);
+		int newFstRecLoc = p.getInt(CONTENT_START) - payLoadSize;
 
 		// write data
-		tableFile.seek((page - 1) * FILESIZE + newFstRecLoc);
-		tableFile.writeShort(dataCell.getPayLoadSize());
-		tableFile.writeInt(dataCell.getRowId());
+		int pos = newFstRecLoc;
+		p.putShort(pos, dataCell.getPayLoadSize());
+		p.putInt(pos + 2, dataCell.getRowId());
+		pos += 6;
 
 		PayLoad payload = dataCell.getPayload();
-		tableFile.writeByte(payload.getNoColumns());
+		p.putByte(pos++, payload.getNoColumns());
 
 		byte[] dataTypes = payload.getDataTypes();
-		tableFile.write(dataTypes);
+		p.putBytes(pos, dataTypes);
+		pos += dataTypes.length;
 
-		String data[] = payload.getData();
-
-		for (int i = 0; i < dataTypes.length; i++) {
-			switch (dataTypes[i]) {
-			case 0x00:
-				tableFile.writeByte(0);
-				break;
-			case 0x01:
-				tableFile.writeShort(0);
-				break;
-			case 0x02:
-				tableFile.writeInt(0);
-				break;
-			case 0x03:
-				tableFile.writeLong(0);
-				break;
-			case 0x04:
-				tableFile.writeByte(new Byte(data[i + 1]));
-				break;
-			case 0x05:
-				tableFile.writeShort(new Short(data[i + 1]));
-				break;
-			case 0x06:
-				tableFile.writeInt(new Integer(data[i + 1]));
-				break;
-			case 0x07:
-				tableFile.writeLong(new Long(data[i + 1]));
-				break;
-			case 0x08:
-				tableFile.writeFloat(new Float(data[i + 1]));
-				break;
-			case 0x09:
-				tableFile.writeDouble(new Double(data[i + 1]));
-				break;
-			case 0x0A:
-				long datetime = tableFile.readLong();
-				ZoneId zoneId = ZoneId.of("America/Chicago");
-				Instant x = Instant.ofEpochSecond(datetime);
-				ZonedDateTime zdt2 = ZonedDateTime.ofInstant(x, zoneId);
-				zdt2.toLocalTime();
-				break;
-			case 0x0B:
-				long date = tableFile.readLong();
-				ZoneId zoneId1 = ZoneId.of("America/Chicago");
-				Instant x1 = Instant.ofEpochSecond(date);
-				ZonedDateTime zdt3 = ZonedDateTime.ofInstant(x1, zoneId1);
-				break;
-			default:
-				tableFile.writeBytes(data[i + 1]);
-				break;
-			}
-		}
+		p.putBytes(pos, payload.getValues());
 
 		// write the new TopMost Record to header
-		tableFile.seek((page - 1) * FILESIZE + 2);
-		tableFile.writeShort(newFstRecLoc);
-
-		if (location == -1) {
-			// increment the count on file
-			int count = getCellCountInPage(page);
-			tableFile.seek((page - 1) * FILESIZE + 1);
-			tableFile.writeByte(count + 1);
-
-			// add the pointer to the new rec to the pointer list.
-			tableFile.seek((page - 1) * FILESIZE + 8 + ((count == 0) ? 0 : (count * 2)));
-			tableFile.writeShort(newFstRecLoc);
-		} else {
-			int count = getCellCountInPage(page);
-			tableFile.seek((page-1)*FILESIZE+8);
-			int i = 0;
-			int ptr = tableFile.readShort();
-			while(i<count&&ptr!=location) {
-				ptr = tableFile.readShort();
-				i++;
-			}
-			if(ptr == location) {
-				tableFile.seek((page-1)*FILESIZE+8+(i*2));
-				tableFile.writeShort(newFstRecLoc);
-			}
-		}
+		p.putInt(CONTENT_START, newFstRecLoc);
+
+		// add the pointer to the new rec to the pointer list, keeping row_id order.
+		// New rows nearly always go last.
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		int index = count;
+		while (index > 0 && p.getInt((p.getShort(PAGE_HEADER_SIZE + ((index - 1) * 2)) & 0xFFFF) + 2) > dataCell
+				.getRowId())
+			index--;
+		for (int i = count; i > index; i--)
+			p.putShort(PAGE_HEADER_SIZE + (i * 2), p.getShort(PAGE_HEADER_SIZE + ((i - 1) * 2)));
+		p.putShort(PAGE_HEADER_SIZE + (index * 2), newFstRecLoc);
+
+		// increment the count on file
+		p.putShort(CELL_COUNT, count + 1);
+
+		Page header = tableFile.getPage(0);
+		header.putInt(ROW_COUNT, header.getInt(ROW_COUNT) + 1);
+		if (dataCell.getRowId() > header.getInt(MAX_ROW_ID))
+			header.putInt(MAX_ROW_ID, dataCell.getRowId());
 	}
 	
 
-	public void insertToLeaf(String[] colNames, String[] values) throws Exception {
-		// +1 byte for number of columns, +6 bytes for the cell headers, every column
-		// other than row_id has a byte header
-		Map<Integer, String> dataTypes = getColumnDataTypes();
-		Map<Integer, ColumnData> columnDetails = getColumnData();
-		Map<Integer, String> isNullable = getColumnNullable();
-		Object[] nullables = isNullable.values().toArray();
-		byte[] dataHeaders = new byte[columnDetails.size() - 1];
-		int headerPointer = 0;
-
-		for (int i = 0; i < values.length; i++) {
-			if (values[i].equalsIgnoreCase("null") && ((String) nullables[i]).equals("NO")) {
-				System.out.println("Cannot insert NULL values in NOT NULL field");
-				return;
-			}
+	/**
+	 * Inserts rows whose values are given in the order of colNames and returns how
+	 * many there were. Columns left out of colNames are null, and so is a value
+	 * given as null. Every row is checked before any is written, so a row that
+	 * can not be stored adds none of them.
+	 */
+	public int insertRows(String[] colNames, List<String[]> rows) throws Exception {
+		for (ColumnData col : getColumnData().values())
+			if (!col.column_name.equalsIgnoreCase("row_id") && getIndex(colNames, col.column_name) == -1
+					&& !col.is_nullable)
+				throw new Exception("Could not find column '" + col.column_name + "'");
+		String[] columns = getColumnNames().values().toArray(new String[0]);
+		for (String colName : colNames)
+			if (getIndex(columns, colName) == -1)
+				throw new Exception("Could not find column '" + colName.trim() + "'");
+		// where each column of the table is in colNames, -1 if it is left out
+		int[] from = new int[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			from[i] = getIndex(colNames, columns[i]);
+
+		String[] dataTypeStr = getColumnDataTypes().values().toArray(new String[0]);
+		Object[] nullables = getColumnNullable().values().toArray();
+		List<String[]> ordered = new ArrayList<>(rows.size());
+		for (String[] values : rows) {
+			if (values.length != colNames.length)
+				throw new Exception("Expected " + colNames.length + " values, got " + values.length + ".");
+			String[] row = new String[columns.length];
+			for (int i = 0; i < columns.length; i++)
+				row[i] = (from[i] != -1) ? values[from[i]] : (i == 0) ? "0" : "null";
+			encodeRow(row, dataTypeStr, nullables);
+			ordered.add(row);
 		}
+		return appendRows(ordered.iterator());
+	}
 
-		int dataSize = 1 + (columnDetails.size() - 1) + 6;
-
-		for (int i : columnDetails.keySet()) {
-			ColumnData col = columnDetails.get(i);
-			if (col.column_name.equalsIgnoreCase("row_id")) {
-				continue;
-			}
-			int indx = getIndex(colNames, col.column_name);
-			if (indx != -1) {
-				dataSize += getDataTypeSize(col.data_type, values[indx].length());
-				dataHeaders[headerPointer++] = (byte) getSTCofDataType(col.data_type, false, values[indx].length());
-			} else if (indx == -1 && col.is_nullable)
-				dataHeaders[headerPointer++] = (byte) getSTCofDataType(col.data_type, true, 0);
-			else
-				throw new Exception("Could not find column '" + col.column_name + "'");
+	/**
+	 * Checks that a row, its values in table order and row_id first, can be
+	 * stored, throwing an exception that says why when it can not.
+	 */
+	public void checkRow(String[] values) throws Exception {
+		byte[] cell;
+		try {
+			cell = encodeRow(values, getColumnDataTypes().values().toArray(new String[0]),
+					getColumnNullable().values().toArray());
+		} catch (NumberFormatException e) {
+			throw new Exception("Invalid number, " + e.getMessage() + ".");
 		}
+		if ((cell.length + 2) >= (pageSize - PAGE_HEADER_SIZE))
+			throw new Exception("A row of " + cell.length + " bytes does not fit in a page.");
+	}
 
-		int pageNo = fetchLastPage();
-		// check leaf size
-		byte[] ColDataType = new byte[columnDetails.size() - 1];
-		String[] dataTypeStr = new String[columnDetails.size()];
-		dataTypes.values().toArray(dataTypeStr);
-		int payLoadSize = getCellSize(values, ColDataType, dataTypeStr);
-		payLoadSize = payLoadSize + 6;
+	/**
+	 * Appends rows, with their values in table order and row_id first, the way a
+	 * bulk load does. The rows are encoded and packed into leaves in memory. The
+	 * last leaf is filled up first, then each further leaf is written whole and
+	 * registered in its parent once. The rows of a leaf get their row_ids in one
+	 * block, the row_id given is ignored. A row that can not be stored stops the
+	 * load, the leaves written before it keep their rows. Returns the number of
+	 * rows appended.
+	 */
+	public int appendRows(Iterator<String[]> rows) throws Exception {
+		String[] dataTypeStr = getColumnDataTypes().values().toArray(new String[0]);
+		Object[] nullables = getColumnNullable().values().toArray();
+		int page = fetchLastPage();
+		List<byte[]> cells = new ArrayList<>();
+		int used = 0;
+		Page p = tableFile.getPage(page);
+		for (int cellLoc : getCellPointers(p)) {
+			byte[] cell = new byte[p.getShort(cellLoc) & 0xFFFF];
+			p.getBytes(cellLoc, cell);
+			cells.add(cell);
+			used += cell.length;
+		}
+		// the cells the leaf held before
+		int kept = cells.size();
+		// the values of the new rows, kept for the indexes
+		List<String[]> indexed = new ArrayList<>();
+		int total = 0;
 
-		boolean canInsert = canInsert(pageNo, payLoadSize);
+		while (rows.hasNext()) {
+			String[] values = rows.next();
+			byte[] cell = encodeRow(values, dataTypeStr, nullables);
+			if ((cell.length + 2) >= (pageSize - PAGE_HEADER_SIZE))
+				throw new Exception("A row of " + cell.length + " bytes does not fit in a page.");
+			if ((cell.length + 2) >= (pageSize - (PAGE_HEADER_SIZE + 2 * cells.size()) - used)) {
+				total += writeAppendedLeaf(page, cells, kept, indexed);
+				page = splitLeafPage(page, maxRowId.get() + 1);
+				cells.clear();
+				used = 0;
+				kept = 0;
+				indexed.clear();
+			}
+			cells.add(cell);
+			used += cell.length;
+			if (!Indexes.isEmpty())
+				indexed.add(values);
+		}
+		return total + writeAppendedLeaf(page, cells, kept, indexed);
+	}
 
-		if (canInsert) {
-			for(int i=0;i<values.length;i++)
-				System.out.println("values--"+values[i]);
-			Cell cell = createCell(pageNo, fetchNextRowID(), (short) payLoadSize, ColDataType, values);
-			insertRec(pageNo, payLoadSize, cell);
-		} else {
-			int row_id = fetchNextRowID();
-			int pgNum = splitLeafPage(pageNo);
-			Cell cell = createCell(pgNum, row_id, (short) payLoadSize, ColDataType, values);
-			insertRec(pgNum, payLoadSize, cell);
+	/**
+	 * Writes a leaf filled by appendRows, whose cells from kept on are new rows.
+	 * They get the next row_ids in one block. Returns the number of new rows.
+	 */
+	private int writeAppendedLeaf(int page, List<byte[]> cells, int kept, List<String[]> indexed)
+			throws IOException {
+		int count = cells.size() - kept;
+		if (count == 0)
+			return 0;
+		int first = maxRowId.getAndAdd(count) + 1;
+		for (int i = 0; i < count; i++)
+			ByteBuffer.wrap(cells.get(kept + i)).putInt(2, first + i);
+		writeLeafCells(page, cells);
+
+		Page header = tableFile.getPage(0);
+		header.putInt(ROW_COUNT, header.getInt(ROW_COUNT) + count);
+		header.putInt(MAX_ROW_ID, first + count - 1);
+		for (int i = 0; i < indexed.size(); i++) {
+			byte[] cell = cells.get(kept + i);
+			String[] values = indexed.get(i);
+			addToIndexes(first + i, Arrays.copyOfRange(cell, 7, 7 + cell[6]),
+					Arrays.copyOfRange(values, 1, values.length));
 		}
+		return count;
+	}
+
+	/**
+	 * Encodes a row, its values in table order and row_id first, as a leaf cell
+	 * whose row_id is left 0.
+	 */
+	private static byte[] encodeRow(String[] values, String[] dataTypeStr, Object[] nullables) throws Exception {
+		if (values.length != dataTypeStr.length)
+			throw new Exception("Expected " + dataTypeStr.length + " values, got " + values.length + ".");
+		for (int i = 0; i < values.length; i++)
+			if (values[i].equalsIgnoreCase("null") && ((String) nullables[i]).equals("NO"))
+				throw new Exception("Cannot insert NULL values in NOT NULL field");
+
+		// +6 bytes for the cell headers
+		byte[] ColDataType = new byte[dataTypeStr.length - 1];
+		int payLoadSize = getCellSize(values, ColDataType, dataTypeStr) + 6;
+		ByteBuffer cell = ByteBuffer.allocate(payLoadSize);
+		cell.putShort((short) payLoadSize);
+		cell.putInt(0);
+		cell.put((byte) ColDataType.length);
+		cell.put(ColDataType);
+		cell.put(PayLoad.encode(ColDataType, values, 1));
+		return cell.array();
 	}
 
 	public void InsertDataToMeta(String[] colNames, String[] values) throws Exception {
+		int row_id = allocateRowID();
 		int pageNo = fetchLastPage();
-		int noColmns;
-		Map<Integer, String> dataTypes = new LinkedHashMap<>();
-		// check leaf size
-		if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_tables")) {
-			noColmns = 2;
-			dataTypes.put(1, "int");
-			dataTypes.put(2, "text");
-		} else if (IsMetaTable && this.TableName.equalsIgnoreCase("davisbase_columns")) {
-			noColmns = 6;
-			dataTypes.put(1, "int");
-			dataTypes.put(2, "text");
-			dataTypes.put(3, "text");
-			dataTypes.put(4, "text");
-			dataTypes.put(5, "tinyint");
-			dataTypes.put(6, "text");
-		} else
+		if (!IsMetaTable)
 			return;
+		Map<Integer, String> dataTypes = getColumnDataTypes();
+		int noColmns = dataTypes.size();
+		// check leaf size
 		byte[] ColDataType = new byte[noColmns - 1]; //-1 coz row_id is not in pl
 		String[] dataTypeStr = new String[noColmns];
 		dataTypes.values().toArray(dataTypeStr);
@@ -371,128 +501,514 @@ public class Table {
 		payLoadSize += 6;
 
 		// change offset calculation??
-		boolean canInsert = canInsert(pageNo, payLoadSize);
+		boolean canInsert = makeRoom(pageNo, payLoadSize);
 
 		if (canInsert) {
-			Cell cell = createCell(pageNo, fetchNextRowID(), (short) payLoadSize, ColDataType, values);
+			Cell cell = createCell(pageNo, row_id, payLoadSize, ColDataType, values);
 			insertRec(pageNo, payLoadSize, cell);
 		} else {
-			int row_id = fetchNextRowID();
-			int pgNum = splitLeafPage(pageNo);
-			Cell cell = createCell(pgNum, row_id, (short) payLoadSize, ColDataType, values);
+			int pgNum = splitLeafPage(pageNo, row_id);
+			Cell cell = createCell(pgNum, row_id, payLoadSize, ColDataType, values);
 			insertRec(pgNum, payLoadSize, cell);
 		}
 	}
 
-	public int splitLeafPage(int pageNo) throws IOException {
-		// adding page
-		int parent = findNonLeafNode(pageNo);
-		if (parent == -1) {
-			int newPage = (int) (tableFile.length() / FILESIZE) + 1;
-			tableFile.setLength(newPage * FILESIZE);
-			setNonLeafHeaders(newPage);
-			insertToNonLeaf(newPage, pageNo);
-			setAsNextPage(newPage, newPage + 1);
+	/**
+	 * Makes room for row rowId in the full leaf pageNo and returns the leaf the row
+	 * has to go to. A row past the last row of the leaf starts a new empty leaf,
+	 * as rows mostly come in row_id order, otherwise the upper half of the cells
+	 * moves to the new leaf. Either way the new leaf is linked into the leaf
+	 * chain and registered in the parent.
+	 */
+	public int splitLeafPage(int pageNo, int rowId) throws IOException {
+		List<Integer> path = findPath(rowId);
+		int newPage = allocatePage();
+		setLeafHeaders(newPage);
+		setAsNextPage(newPage, fetchNextLeafPage(pageNo));
+		setAsNextPage(pageNo, newPage);
+
+		int divider;
+		if (getCellCountInPage(pageNo) == 0 || rowId > findTopRowId(pageNo))
+			divider = rowId - 1;
+		else
+			divider = moveUpperHalf(pageNo, newPage, rowId);
+		insertToParent(path, path.size() - 2, pageNo, divider, newPage);
+		if (fetchNextLeafPage(newPage) == 0xFFFFFFFF)
+			tableFile.getPage(0).putInt(LAST_LEAF_PAGE, newPage);
+		return (rowId > divider) ? newPage : pageNo;
+	}
 
-			tableFile.setLength((newPage + 1) * FILESIZE);
-			setLeafHeaders(newPage + 1);
-			setAsNextPage(pageNo, newPage + 1);
-			return newPage + 1;
-		} else {
-			int newPage = (int) (tableFile.length() / FILESIZE) + 1;
-			insertToNonLeaf(parent, pageNo);
-			setAsNextPage(parent, newPage);
-			setAsNextPage(pageNo, newPage);
-			return newPage;
+	/**
+	 * Moves the upper half of the cells of a leaf to an empty leaf, rewriting both
+	 * compactly, and returns the largest row_id that can stay in the left one.
+	 */
+	private int moveUpperHalf(int from, int to, int rowId) throws IOException {
+		List<byte[]> cells = new ArrayList<>();
+		Page p = tableFile.getPage(from);
+		for (int cellLoc : getCellPointers(from)) {
+			byte[] cell = new byte[p.getShort(cellLoc) & 0xFFFF];
+			p.getBytes(cellLoc, cell);
+			cells.add(cell);
+		}
+		int half = cells.size() / 2;
+		writeLeafCells(from, cells.subList(0, half));
+		writeLeafCells(to, cells.subList(half, cells.size()));
+		if (half == cells.size())
+			return rowId - 1;
+		return ByteBuffer.wrap(cells.get(half)).getInt(2) - 1;
+	}
+
+	private void writeLeafCells(int page, List<byte[]> cells) throws IOException {
+		Page p = tableFile.getPage(page);
+		int top = pageSize;
+		for (int i = 0; i < cells.size(); i++) {
+			top -= cells.get(i).length;
+			p.putBytes(top, cells.get(i));
+			p.putShort(PAGE_HEADER_SIZE + (i * 2), top);
 		}
+		p.putShort(CELL_COUNT, cells.size());
+		p.putInt(CONTENT_START, top);
 	}
 
-	public void insertToNonLeaf(int page, int pagePtr) throws IOException {
+	/**
+	 * Registers in the interior page at the given level of the path that page left
+	 * was split into left, holding row_ids up to key, and right. A full interior
+	 * page is split first, and a split of the root grows a new root above it.
+	 */
+	private void insertToParent(List<Integer> path, int level, int left, int key, int right) throws IOException {
+		if (level < 0) {
+			int root = allocatePage();
+			setNonLeafHeaders(root);
+			setAsNextPage(root, left);
+			insertToNonLeaf(root, left, key, right);
+			setRootPage(root);
+			return;
+		}
+		int parent = path.get(level);
+		Page p = tableFile.getPage(parent);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		if (p.getInt(CONTENT_START) - (PAGE_HEADER_SIZE + (count * 2)) < 10) {
+			int newPage = allocatePage();
+			int promoted = splitNonLeafPage(parent, newPage);
+			insertToParent(path, level - 1, parent, promoted, newPage);
+			if (findChildIndex(parent, left) == -2)
+				parent = newPage;
+		}
+		insertToNonLeaf(parent, left, key, right);
+	}
+
+	/**
+	 * Adds the cell (left, key) in front of the reference to page left, which then
+	 * refers to right instead.
+	 */
+	public void insertToNonLeaf(int page, int left, int key, int right) throws IOException {
 		if (isLeaf(page))
 			return;
+		int index = findChildIndex(page, left);
+		Page p = tableFile.getPage(page);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		if (index == -1) {
+			index = count;
+			p.putInt(NEXT_PAGE, right);
+		} else
+			p.putInt(p.getShort(PAGE_HEADER_SIZE + (index * 2)) & 0xFFFF, right);
+
 		//update top cell location
-		int loc = fetchTopRecLoc(page) - 8;
-		tableFile.seek((page - 1) * FILESIZE + 2);
-		tableFile.writeShort(loc);
+		int loc = p.getInt(CONTENT_START) - 8;
+		p.putInt(CONTENT_START, loc);
+		p.putInt(loc, left);
+		p.putInt(loc + 4, key);
+
+		// add the pointer to the new cell to the pointer list, keeping key order
+		for (int i = count; i > index; i--)
+			p.putShort(PAGE_HEADER_SIZE + (i * 2), p.getShort(PAGE_HEADER_SIZE + ((i - 1) * 2)));
+		p.putShort(PAGE_HEADER_SIZE + (index * 2), loc);
+		p.putShort(CELL_COUNT, count + 1);
+	}
 
-		// increment the count on file
-		int count = getCellCountInPage(page);
-		tableFile.seek((page - 1) * FILESIZE + 1);
-		tableFile.writeByte(count + 1);
+	/**
+	 * Index of the cell of an interior page that points to child, -1 when child is
+	 * the rightmost child and -2 when it is not a child of the page at all.
+	 */
+	private int findChildIndex(int page, int child) throws IOException {
+		Page p = tableFile.getPage(page);
+		if (p.getInt(NEXT_PAGE) == child)
+			return -1;
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		for (int i = 0; i < count; i++)
+			if (p.getInt(p.getShort(PAGE_HEADER_SIZE + (i * 2)) & 0xFFFF) == child)
+				return i;
+		return -2;
+	}
 
-		int topRec = findTopRowId(pagePtr);
-		tableFile.seek((page - 1) * FILESIZE + loc);
-		tableFile.writeInt(pagePtr);
-		tableFile.writeInt(topRec);
+	/**
+	 * Moves the cells above the middle one of a full interior page to the empty
+	 * page newPage. The middle cell's child becomes the rightmost child of the old
+	 * page and its key, returned, separates the two pages in their parent.
+	 */
+	private int splitNonLeafPage(int page, int newPage) throws IOException {
+		Page p = tableFile.getPage(page);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		int[] children = new int[count];
+		int[] keys = new int[count];
+		for (int i = 0; i < count; i++) {
+			int cellLoc = p.getShort(PAGE_HEADER_SIZE + (i * 2)) & 0xFFFF;
+			children[i] = p.getInt(cellLoc);
+			keys[i] = p.getInt(cellLoc + 4);
+		}
+		int rightmost = p.getInt(NEXT_PAGE);
+		int middle = count / 2;
+		writeNonLeafCells(page, children, keys, 0, middle, children[middle]);
+		writeNonLeafCells(newPage, children, keys, middle + 1, count, rightmost);
+		return keys[middle];
+	}
 
-		// add the pointer to the new rec to the pointer list.
-		tableFile.seek((page - 1) * FILESIZE + 8 + ((count == 0) ? 0 : ((count - 1) * 2)));
-		tableFile.writeShort(loc);
+	private void writeNonLeafCells(int page, int[] children, int[] keys, int from, int to, int rightmost)
+			throws IOException {
+		setNonLeafHeaders(page);
+		Page p = tableFile.getPage(page);
+		int top = pageSize;
+		for (int i = from; i < to; i++) {
+			top -= 8;
+			p.putInt(top, children[i]);
+			p.putInt(top + 4, keys[i]);
+			p.putShort(PAGE_HEADER_SIZE + ((i - from) * 2), top);
+		}
+		p.putShort(CELL_COUNT, to - from);
+		p.putInt(CONTENT_START, top);
+		p.putInt(NEXT_PAGE, rightmost);
 	}
 
 	private void setAsNextPage(int currPage, int page) throws IOException {
-		tableFile.seek((currPage - 1) * FILESIZE + 4);
-		tableFile.writeInt(page);
+		tableFile.getPage(currPage).putInt(NEXT_PAGE, page);
+	}
+
+	/**
+	 * Takes a page off the free list, or appends one to the file when the list is
+	 * empty. The caller sets the page up, a reused page still holds what it held.
+	 */
+	private int allocatePage() throws IOException {
+		Page header = tableFile.getPage(0);
+		int page = header.getInt(FREE_PAGE);
+		if (page == 0)
+			return tableFile.allocatePage();
+		header.putInt(FREE_PAGE, fetchNextLeafPage(page));
+		return page;
+	}
+
+	private void freePage(int page) throws IOException {
+		Page p = tableFile.getPage(page);
+		Page header = tableFile.getPage(0);
+		p.putByte(0, FREE_PAGE_TYPE);
+		p.putShort(CELL_COUNT, 0);
+		p.putInt(CONTENT_START, pageSize);
+		p.putInt(NEXT_PAGE, header.getInt(FREE_PAGE));
+		header.putInt(FREE_PAGE, page);
+	}
+
+	/**
+	 * Takes the leaf emptied by the delete of row rowId out of the tree and puts it
+	 * on the free list. The leaf is unlinked from the leaf chain and removed from
+	 * its parent, as is every interior page left with no child, and a root left
+	 * with a single child is replaced by it. Page 1 stays, scans start there.
+	 */
+	private void freeEmptyLeaf(int page, int rowId) throws IOException {
+		List<Integer> path = findPath(rowId);
+		if (page == 1 || path.size() < 2 || path.get(path.size() - 1) != page)
+			return;
+		int previous = findPreviousLeaf(path);
+		if (previous == -1)
+			return;
+		setAsNextPage(previous, fetchNextLeafPage(page));
+		if (fetchLastPage() == page)
+			tableFile.getPage(0).putInt(LAST_LEAF_PAGE, previous);
+		removeFromParent(path, path.size() - 1);
+		freePage(page);
+
+		int root = getRootPage();
+		while (isNode(root) && getCellCountInPage(root) == 0) {
+			int child = fetchNextLeafPage(root);
+			freePage(root);
+			setRootPage(child);
+			root = child;
+		}
+	}
+
+	/**
+	 * The leaf before the last page of path in the leaf chain, which is the
+	 * rightmost leaf left of the path at the lowest level that has one. The leaf
+	 * chain is walked when that leaf does not link to it.
+	 */
+	private int findPreviousLeaf(List<Integer> path) throws IOException {
+		int page = path.get(path.size() - 1);
+		for (int level = path.size() - 2; level >= 0; level--) {
+			int parent = path.get(level);
+			int index = findChildIndex(parent, path.get(level + 1));
+			if (index == -1)
+				index = getCellCountInPage(parent);
+			if (index > 0) {
+				Page p = tableFile.getPage(parent);
+				int key = p.getInt((p.getShort(PAGE_HEADER_SIZE + ((index - 1) * 2)) & 0xFFFF) + 4);
+				int previous = findLeafPage(key);
+				if (fetchNextLeafPage(previous) == page)
+					return previous;
+				break;
+			}
+		}
+		for (int leaf = 1; leaf != 0xFFFFFFFF; leaf = fetchNextLeafPage(leaf))
+			if (fetchNextLeafPage(leaf) == page)
+				return leaf;
+		return -1;
+	}
+
+	/**
+	 * Removes the reference to the page at the given level of path from its
+	 * parent, and the parent itself, which is freed, when it was its only child.
+	 */
+	private void removeFromParent(List<Integer> path, int level) throws IOException {
+		int child = path.get(level);
+		int parent = path.get(level - 1);
+		Page p = tableFile.getPage(parent);
+		int count = p.getShort(CELL_COUNT) & 0xFFFF;
+		if (count == 0) {
+			removeFromParent(path, level - 1);
+			freePage(parent);
+			return;
+		}
+		int[] children = new int[count];
+		int[] keys = new int[count];
+		for (int i = 0; i < count; i++) {
+			int cellLoc = p.getShort(PAGE_HEADER_SIZE + (i * 2)) & 0xFFFF;
+			children[i] = p.getInt(cellLoc);
+			keys[i] = p.getInt(cellLoc + 4);
+		}
+		int rightmost = p.getInt(NEXT_PAGE);
+		int index = findChildIndex(parent, child);
+		if (index == -1) {
+			// the child left of it takes the row_ids above the last key
+			rightmost = children[count - 1];
+		} else {
+			System.arraycopy(children, index + 1, children, index, count - index - 1);
+			System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+		}
+		writeNonLeafCells(parent, children, keys, 0, count - 1, rightmost);
 	}
 
 	private int findNonLeafNode(int page) throws IOException {
-		int i = 1;
-		int lastLeaf = fetchLastPage();
-		while (i < lastLeaf) {
+		int pageCount = tableFile.getPageCount();
+		for (int i = 1; i <= pageCount; i++) {
 			if (isNode(i))
 				return i;
-			i++;
 		}
 		return -1;
 	}
 
-	public void updateToLeaf(String[] colNames, String[] data, int page, int location, int row_id) throws Exception {
-		// +1 byte for number of columns, +6 bytes for the cell headers, every column
-		// other than row_id has a byte header
-		Map<Integer, String> dataTypes = getColumnDataTypes();
-		Map<Integer, ColumnData> columnDetails = getColumnData();
-		Map<Integer, String> isNullable = getColumnNullable();
-		Object[] nullables = isNullable.values().toArray();
-		byte[] dataHeaders = new byte[columnDetails.size() - 1];
-		int headerPointer = 0;
+	private int getRootPage() throws IOException {
+		int root = tableFile.getPage(0).getInt(ROOT_PAGE);
+		if (root == 0) {
+			// files written before the root was recorded have at most one interior page
+			int node = findNonLeafNode(1);
+			root = (node == -1) ? 1 : node;
+			setRootPage(root);
+		}
+		return root;
+	}
 
-		int dataSize = (columnDetails.size() - 1) + 1 + 6;
+	private void setRootPage(int page) throws IOException {
+		tableFile.getPage(0).putInt(ROOT_PAGE, page);
+	}
 
-		for (int i : columnDetails.keySet()) {
-			ColumnData col = columnDetails.get(i);
-			if (col.column_name.equalsIgnoreCase("row_id")) {
-				continue;
+	/**
+	 * Pages visited descending from the root to the leaf of rowId, root first.
+	 */
+	private List<Integer> findPath(int rowId) throws IOException {
+		List<Integer> path = new ArrayList<>();
+		int page = getRootPage();
+		path.add(page);
+		while (isNode(page)) {
+			page = findChildPage(page, rowId);
+			path.add(page);
+		}
+		return path;
+	}
+
+	/**
+	 * Descends from the root to the leaf that holds rowId, or would hold it.
+	 */
+	private int findLeafPage(int rowId) throws IOException {
+		int page = getRootPage();
+		while (isNode(page))
+			page = findChildPage(page, rowId);
+		return page;
+	}
+
+	/**
+	 * Binary search over the (page pointer, key) cells of an interior page. Every
+	 * row_id in a child is at most the key of its cell, row_ids above the largest
+	 * key are in the rightmost child kept in the next page field.
+	 */
+	private int findChildPage(int page, int rowId) throws IOException {
+		Page p = tableFile.getPage(page);
+		int low = 0;
+		int high = (p.getShort(CELL_COUNT) & 0xFFFF) - 1;
+		int child = p.getInt(NEXT_PAGE);
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cellLoc = p.getShort(PAGE_HEADER_SIZE + (mid * 2)) & 0xFFFF;
+			if (p.getInt(cellLoc + 4) >= rowId) {
+				child = p.getInt(cellLoc);
+				high = mid - 1;
+			} else
+				low = mid + 1;
+		}
+		return child;
+	}
+
+	/**
+	 * Sets a column of the rows matching the condition to value and returns the
+	 * number of rows changed. The rows are changed a leaf at a time, each new
+	 * version written over the old one where it fits. The rows of a leaf whose
+	 * new version does not fit are taken off it at once and then inserted again
+	 * where a new row with their row_id would go, which only changes that leaf or
+	 * a leaf split off it, so the rows found on other leaves stay where they are.
+	 */
+	public int updateRecords(String columnName, String value, String[] condition) throws Exception {
+		String[] colNames = getColumnNames().values().toArray(new String[0]);
+		String[] dataTypeStr = getColumnDataTypes().values().toArray(new String[0]);
+		int column = getIndex(colNames, columnName);
+		if (column == -1)
+			throw new Exception("Could not find column '" + columnName + "'");
+		if (column == 0)
+			throw new Exception("row_id can not be updated.");
+		if (value.equalsIgnoreCase("null") && getColumnNullable().values().toArray()[column].equals("NO"))
+			throw new Exception("Cannot insert NULL values in NOT NULL field");
+
+		Map<Integer, List<Cell>> leaves = groupByPage(selectRecords(new String[] { "*" }, condition));
+		int total = 0;
+		for (Map.Entry<Integer, List<Cell>> leaf : leaves.entrySet()) {
+			int page = leaf.getKey();
+			Set<Integer> movedLocations = new HashSet<>();
+			List<Cell> moved = new ArrayList<>();
+			for (Cell cell : leaf.getValue()) {
+				PayLoad old = cell.getPayload();
+				String[] data = new String[colNames.length];
+				data[0] = String.valueOf(cell.getRowId());
+				System.arraycopy(old.getData(), 0, data, 1, colNames.length - 1);
+				data[column] = value;
+
+				// +6 bytes for the cell headers
+				byte[] ColDataType = new byte[colNames.length - 1];
+				int payLoadSize = getCellSize(data, ColDataType, dataTypeStr) + 6;
+				if (!overwriteRec(page, cell.getLocation(), payLoadSize, ColDataType,
+						PayLoad.encode(ColDataType, data, 1))) {
+					movedLocations.add(cell.getLocation());
+					moved.add(createCell(page, cell.getRowId(), payLoadSize, ColDataType, data));
+				}
+
+				for (Map.Entry<Integer, Index> index : Indexes.entrySet()) {
+					int i = index.getKey() - 2;
+					if (old.getDataTypes()[i] != ColDataType[i] || !old.getData()[i].equals(data[i + 1])) {
+						index.getValue().delete(old.getDataTypes()[i], old.getData()[i], cell.getRowId());
+						index.getValue().insert(ColDataType[i], data[i + 1], cell.getRowId());
+					}
+				}
+				total++;
+			}
+
+			if (!moved.isEmpty()) {
+				removeRecs(page, movedLocations);
+				for (Cell cell : moved) {
+					int target = findLeafPage(cell.getRowId());
+					if (!makeRoom(target, cell.getPayLoadSize()))
+						target = splitLeafPage(target, cell.getRowId());
+					insertRec(target, cell.getPayLoadSize(), cell);
+				}
 			}
-			int indx = getIndex(colNames, col.column_name);
-			if (indx != -1) {
-				dataSize += getDataTypeSize(col.data_type, data[indx].length());
-				dataHeaders[headerPointer++] = (byte) getSTCofDataType(col.data_type, false, data[indx].length());
-			} else if (indx == -1 && col.is_nullable)
-				dataHeaders[headerPointer++] = (byte) getSTCofDataType(col.data_type, true, 0);
-			else
-				throw new Exception("Could not find column '" + col.column_name + "'");
 		}
+		return total;
+	}
 
-		// check leaf size
-		byte[] ColDataType = new byte[columnDetails.size() - 1];
-		String[] dataTypeStr = new String[columnDetails.size()];
-		dataTypes.values().toArray(dataTypeStr);
-		int payLoadSize = getCellSize(data, ColDataType, dataTypeStr);
-		payLoadSize = payLoadSize + 6;
+	/**
+	 * Deletes the rows matching the condition and returns how many there were.
+	 * Each leaf loses its rows in one rewrite of its cell pointers, and a leaf
+	 * left empty is freed.
+	 */
+	public int deleteRecords(String[] condition) throws Exception {
+		Map<Integer, List<Cell>> leaves = groupByPage(selectRecords(new String[] { "*" }, condition));
+		int total = 0;
+		for (Map.Entry<Integer, List<Cell>> leaf : leaves.entrySet()) {
+			int page = leaf.getKey();
+			Set<Integer> locations = new HashSet<>();
+			for (Cell cell : leaf.getValue()) {
+				if (!Indexes.isEmpty())
+					removeFromIndexes(cell.getRowId(), cell.getPayload().getDataTypes(), cell.getPayload().getData());
+				locations.add(cell.getLocation());
+			}
+			removeRecs(page, locations);
+			total += locations.size();
+			if (getCellCountInPage(page) == 0)
+				freeEmptyLeaf(page, leaf.getValue().get(0).getRowId());
+		}
+		return total;
+	}
 
-		boolean canInsert = canInsert(page, payLoadSize);
+	/**
+	 * The rows by the leaf they are on, leaves in the order their first row comes.
+	 */
+	private static Map<Integer, List<Cell>> groupByPage(Map<Integer, Cell> rows) {
+		Map<Integer, List<Cell>> pages = new LinkedHashMap<>();
+		for (Cell cell : rows.values()) {
+			List<Cell> cells = pages.get(cell.getPageNumber());
+			if (cells == null) {
+				cells = new ArrayList<>();
+				pages.put(cell.getPageNumber(), cells);
+			}
+			cells.add(cell);
+		}
+		return pages;
+	}
 
-		if (canInsert) {
-			Cell cell = createCell(page, row_id, (short) payLoadSize, ColDataType, data);
-			insertRec(page, payLoadSize, cell, location);
-		} else {
-			int pgNum = splitLeafPage(page);
-			Cell cell = createCell(pgNum, row_id, (short) payLoadSize, ColDataType, data);
-			insertRec(pgNum, payLoadSize, cell, location);
+	/**
+	 * Writes the new version of the cell at location over the old one, if it is
+	 * not larger. When every column keeps its serial type, as it does for a new
+	 * value of a fixed width column, only the bytes of the columns whose value
+	 * changed are written. Returns false when the new version does not fit.
+	 */
+	private boolean overwriteRec(int page, int location, int payLoadSize, byte[] dataTypes, byte[] values)
+			throws Exception {
+		Page p = tableFile.getPage(page);
+		int noColumns = p.getByte(location + 6);
+		int pos = location + 7 + noColumns;
+		boolean sameTypes = (noColumns == dataTypes.length);
+		for (int i = 0; sameTypes && i < noColumns; i++)
+			sameTypes = (p.getByte(location + 7 + i) == dataTypes[i]);
+
+		if (sameTypes) {
+			int from = 0;
+			for (byte dataType : dataTypes) {
+				int size = getSizeByHeader(dataType);
+				for (int i = 0; i < size; i++) {
+					if (p.getByte(pos + from + i) != values[from + i]) {
+						p.putBytes(pos + from, values, from, size);
+						break;
+					}
+				}
+				from += size;
+			}
+			return true;
 		}
+
+		// the bytes past a smaller version are left unused until the page is compacted
+		if (payLoadSize > (p.getShort(location) & 0xFFFF))
+			return false;
+		p.putShort(location, payLoadSize);
+		p.putByte(location + 6, dataTypes.length);
+		p.putBytes(location + 7, dataTypes);
+		p.putBytes(location + 7 + dataTypes.length, values);
+		return true;
 	}
 
-	private Cell createCell(int pageNo, int primaryKey, short payLoadSize, byte[] dataType, String[] values) {
+	private Cell createCell(int pageNo, int primaryKey, int payLoadSize, byte[] dataType, String[] values) throws Exception {
 		Cell cell = new Cell();
 		cell.setPageNumber(pageNo);
 		cell.setRowId(primaryKey);
@@ -501,7 +1017,7 @@ public class Table {
 		PayLoad payload = new PayLoad();
 		payload.setNumberOfColumns(Byte.parseByte(values.length - 1 + ""));
 		payload.setDataTypes(dataType);
-		payload.setData(values);
+		payload.setValues(PayLoad.encode(dataType, values, 1));
 
 		cell.setPayload(payload);
 
@@ -512,8 +1028,9 @@ public class Table {
 
 		int size = 1 + dataType.length - 1;
 		for (int i = 1; i < values.length; i++) {
-			ColDataType[i - 1] = (byte) getSTCofDataType(dataType[i], false, values[i].length());
-			size = size + getDataTypeSize(dataType[i], values[i].length());
+			ColDataType[i - 1] = (byte) getSTCofDataType(dataType[i], values[i].equalsIgnoreCase("null"),
+					values[i].length());
+			size = size + getSizeByHeader(ColDataType[i - 1]);
 		}
 
 		return size;
@@ -528,298 +1045,608 @@ public class Table {
 	}
 
 	private int fetchLastPage() throws IOException {
-		int page = 0;
-		int nextPage = 1;
-		while (nextPage != 0xFFFFFFFF) {
-			page = nextPage;
-			nextPage = fetchNextLeafPage(page);
-		}
-		return page;
+		return tableFile.getPage(0).getInt(LAST_LEAF_PAGE);
 	}
 
-	public int fetchNextRowID() throws IOException {
-		int page = fetchLastPage();
-		int cellCount = getCellCountInPage(page);
-		if (cellCount == 0)
-			return 1;
-		tableFile.seek(((page - 1) * FILESIZE) + (8 + ((cellCount - 1) * 2)));
-		int lasRecLoc = tableFile.readShort();
-		tableFile.seek(((page - 1) * FILESIZE) + lasRecLoc + 2);
-		int cellValue = (int) tableFile.readInt();
-		int totRecs = totalRecordCount();
-		return ((cellValue > totRecs) ? cellValue : totRecs) + 1;
+	/**
+	 * The row_id the next inserted row gets. Row_ids are never reused, even after
+	 * the row holding the largest one is deleted.
+	 */
+	public int fetchNextRowID() {
+		return maxRowId.get() + 1;
 	}
 
-	public int totalRecordCount() throws IOException {
+	/**
+	 * Hands out the next row_id. Each call gets a row_id of its own, even if the
+	 * row is never inserted.
+	 */
+	private int allocateRowID() {
+		return maxRowId.incrementAndGet();
+	}
+
+	/**
+	 * Fills in the table header of a file written before it was kept, in one walk
+	 * over the leaves.
+	 */
+	private void rebuildTableHeader() throws IOException {
 		int page = 1;
+		int lastPage = 1;
 		int count = 0;
+		int largestRowId = 0;
 		while (page != 0xFFFFFFFF) {
+			lastPage = page;
+			Page p = tableFile.getPage(page);
+			for (int cellLoc : getCellPointers(page))
+				largestRowId = Math.max(largestRowId, p.getInt(cellLoc + 2));
 			count += getCellCountInPage(page);
 			page = fetchNextLeafPage(page);
 		}
-		return count;
+		Page header = tableFile.getPage(0);
+		header.putInt(LAST_LEAF_PAGE, lastPage);
+		header.putInt(MAX_ROW_ID, largestRowId);
+		header.putInt(ROW_COUNT, count);
+	}
+
+	/**
+	 * Rewrites the table compactly. The rows are packed into the leaves from page
+	 * 1 on, in row_id order, the interior pages over them follow, and the free
+	 * list is emptied. Row_ids do not change, so the indexes stay valid. Returns
+	 * the number of pages the table uses now, the pages past them are no longer
+	 * referred to and can be cut off with truncate once the rewrite is committed.
+	 */
+	public int vacuum() throws IOException {
+		List<byte[]> cells = new ArrayList<>();
+		for (int page = 1; page != 0xFFFFFFFF; page = fetchNextLeafPage(page)) {
+			Page p = tableFile.getPage(page);
+			for (int cellLoc : getCellPointers(p)) {
+				byte[] cell = new byte[p.getShort(cellLoc) & 0xFFFF];
+				p.getBytes(cellLoc, cell);
+				cells.add(cell);
+			}
+		}
+
+		// (page, largest row_id in it) for each page of the level last written
+		List<int[]> level = new ArrayList<>();
+		int next = 1;
+		int from = 0;
+		do {
+			int to = from;
+			int used = 0;
+			while (to < cells.size()
+					&& (cells.get(to).length + 2) < (pageSize - (PAGE_HEADER_SIZE + 2 * (to - from)) - used))
+				used += cells.get(to++).length;
+			int page = reusePage(next++);
+			setLeafHeaders(page);
+			writeLeafCells(page, cells.subList(from, to));
+			if (!level.isEmpty())
+				setAsNextPage(level.get(level.size() - 1)[0], page);
+			level.add(new int[] { page, (to == 0) ? 0 : ByteBuffer.wrap(cells.get(to - 1)).getInt(2) });
+			from = to;
+		} while (from < cells.size());
+		int leaves = level.size();
+
+		// interior pages are left room for one more cell
+		int fanOut = (pageSize - PAGE_HEADER_SIZE) / 10;
+		while (level.size() > 1) {
+			List<int[]> parents = new ArrayList<>();
+			int groups = (level.size() + fanOut - 1) / fanOut;
+			for (int group = 0, first = 0; group < groups; group++) {
+				// the children are spread evenly over the pages of the level
+				int end = first + (level.size() - first + (groups - group) - 1) / (groups - group);
+				int count = end - first - 1;
+				int[] children = new int[count];
+				int[] keys = new int[count];
+				for (int i = 0; i < count; i++) {
+					children[i] = level.get(first + i)[0];
+					keys[i] = level.get(first + i)[1];
+				}
+				int page = reusePage(next++);
+				writeNonLeafCells(page, children, keys, 0, count, level.get(end - 1)[0]);
+				parents.add(new int[] { page, level.get(end - 1)[1] });
+				first = end;
+			}
+			level = parents;
+		}
+
+		Page header = tableFile.getPage(0);
+		header.putInt(ROOT_PAGE, level.get(0)[0]);
+		header.putInt(LAST_LEAF_PAGE, leaves);
+		header.putInt(ROW_COUNT, cells.size());
+		header.putInt(FREE_PAGE, 0);
+		return next - 1;
+	}
+
+	/**
+	 * The given page, appended to the file first if the file ends before it.
+	 */
+	private int reusePage(int page) throws IOException {
+		return (page <= tableFile.getPageCount()) ? page : tableFile.allocatePage();
+	}
+
+	/**
+	 * Number of pages in the table file, not counting the file header.
+	 */
+	public int getPageCount() throws IOException {
+		return tableFile.getPageCount();
+	}
+
+	/**
+	 * Cuts the table file back to its first pageCount pages.
+	 */
+	public void truncate(int pageCount) throws IOException {
+		tableFile.truncate(pageCount);
 	}
 
 	public int findTopRowId(int page) throws IOException {
-		int cellCount = getCellCountInPage(page);
+		Page p = tableFile.getPage(page);
+		int cellCount = p.getShort(CELL_COUNT) & 0xFFFF;
 		if (cellCount == 0)
 			return 1;
 		
-		tableFile.seek(((page - 1) * FILESIZE) + (8 + ((cellCount - 1) * 2)));
-		int lasRecLoc = tableFile.readShort();
-		tableFile.seek((page - 1) * FILESIZE + lasRecLoc + 2);
-		return ((int) tableFile.readInt());
+		int lasRecLoc = p.getShort(PAGE_HEADER_SIZE + ((cellCount - 1) * 2)) & 0xFFFF;
+		return p.getInt(lasRecLoc + 2);
 	}
 
+	/**
+	 * Collects the rows matching the condition, for callers that change the table
+	 * while they go through them. Readers should use openCursor instead.
+	 */
 	public Map<Integer, Cell> selectRecords(String[] columnNames, String[] condition) throws Exception {
-		Map<Integer, Cell> cells = getAllData();
+		Map<Integer, Cell> records = new LinkedHashMap<>();
+		RecordCursor cursor = openCursor(columnNames, condition);
+		for (Cell cell = cursor.next(); cell != null; cell = cursor.next())
+			records.put(cell.getRowId(), cell);
+		return records;
+	}
 
-		if (condition.length > 0) {
-			Map<Integer, Cell> filteredRecords = filterData(cells, columnNames, condition);
-			return filteredRecords;
-		} else {
-			return cells;
+	/**
+	 * Returns a cursor over the rows matching the condition, in row_id order. Rows
+	 * are read and tested as the cursor is advanced, so only the current leaf is
+	 * held at a time. The condition is compiled once and tested on the columns it
+	 * names, and only the columns in columnNames, or all for "*", are decoded for
+	 * the rows handed out. The table must not be changed while the cursor is in
+	 * use.
+	 *
+	 * When every matching row has to satisfy a comparison on row_id, only the
+	 * leaves in its range are read. Otherwise an index on a column compared that
+	 * way supplies the rows. Either way the whole condition is tested on each row.
+	 */
+	public RecordCursor openCursor(String[] columnNames, String[] condition) throws Exception {
+		boolean[] projection = getProjection(columnNames);
+		Predicate predicate = Predicate.compile(Schema, condition);
+		List<Predicate.Comparison> conjuncts = predicate.getConjuncts();
+		for (Predicate.Comparison comparison : conjuncts)
+			if (comparison.getOrdinalPosition() == 1 && !comparison.getOperator().equals("<>"))
+				return selectByRowId(comparison, predicate, projection);
+		if (!Indexes.isEmpty()) {
+			for (Predicate.Comparison comparison : conjuncts) {
+				RecordCursor indexed = selectByIndex(comparison, predicate, projection);
+				if (indexed != null)
+					return indexed;
+			}
+		}
+		if (SCAN_POOL != null) {
+			List<Integer> leaves = getLeafPages();
+			if (leaves.size() >= PARALLEL_SCAN_MIN_LEAVES)
+				return new ParallelLeafCursor(leaves, predicate, projection);
 		}
+		return new LeafCursor(1, 0xFFFFFFFF, predicate, projection);
 	}
 
-	private Map<Integer, Cell> filterData(Map<Integer, Cell> cells, String[] resultColumns, String[] condition) throws Exception {
-		Map<Integer, Cell> filteredRecords = new LinkedHashMap<>();
+	/**
+	 * Flags, by payload index, the columns named in columnNames, or null when all
+	 * columns are wanted.
+	 */
+	private boolean[] getProjection(String[] columnNames) {
+		if (columnNames.length == 1 && columnNames[0].trim().equals("*"))
+			return null;
 		Map<Integer, String> colNames = getColumnNames();
+		boolean[] projection = new boolean[Math.max(colNames.size() - 1, 0)];
+		for (Map.Entry<Integer, String> entry : colNames.entrySet())
+			if (entry.getKey() > 1 && getIndex(columnNames, entry.getValue()) != -1)
+				projection[entry.getKey() - 2] = true;
+		return projection;
+	}
+
+	/**
+	 * Walks the leaves from firstLeaf up to lastLeaf, or to the end of the chain,
+	 * and hands out the rows satisfying the predicate.
+	 */
+	private class LeafCursor implements RecordCursor {
+		private final int lastLeaf;
+		private final Predicate predicate;
+		private final boolean[] projection;
+		private int page;
+		private int[] pointers;
+		private int next = 0;
+
+		LeafCursor(int firstLeaf, int lastLeaf, Predicate predicate, boolean[] projection) throws IOException {
+			this.lastLeaf = lastLeaf;
+			this.predicate = predicate;
+			this.projection = projection;
+			this.page = firstLeaf;
+			this.pointers = getCellPointers(firstLeaf);
+		}
 
-		int ordinalPosition = 2;
-		for (Map.Entry<Integer, String> entry : colNames.entrySet()) {
-			String columnName = entry.getValue();
-			if (columnName.equals(condition[0])) {
-				ordinalPosition = entry.getKey();
+		@Override
+		public Cell next() throws Exception {
+			while (page != 0xFFFFFFFF) {
+				Page p = tableFile.getPage(page);
+				while (next < pointers.length) {
+					int recLoc = pointers[next++];
+					if (predicate.matches(p, recLoc))
+						return readCell(page, recLoc, projection);
+				}
+				page = (page == lastLeaf) ? 0xFFFFFFFF : fetchNextLeafPage(page);
+				if (page != 0xFFFFFFFF) {
+					pointers = getCellPointers(page);
+					next = 0;
+				}
 			}
+			return null;
 		}
+	}
 
-		for (Map.Entry<Integer, Cell> entry : cells.entrySet()) {
-			Cell cell = entry.getValue();
-			PayLoad payload = cell.getPayload();
-			String[] data = payload.getData();
-			byte[] dataSTC = payload.getDataTypes();
+	/**
+	 * Filters the leaves on the threads of SCAN_POOL, a batch of leaves at a time,
+	 * and hands out the matching rows of each batch in leaf order, which is row_id
+	 * order. Only one batch of rows is held at a time.
+	 */
+	private class ParallelLeafCursor implements RecordCursor {
+		private final List<Integer> leaves;
+		private final Predicate predicate;
+		private final boolean[] projection;
+		private final int batchSize = SCAN_THREADS * LEAVES_PER_TASK * 4;
+		private int nextLeaf = 0;
+		private Iterator<Cell> batch = Collections.<Cell>emptyList().iterator();
+
+		ParallelLeafCursor(List<Integer> leaves, Predicate predicate, boolean[] projection) {
+			this.leaves = leaves;
+			this.predicate = predicate;
+			this.projection = projection;
+		}
 
-			boolean result;
+		@Override
+		public Cell next() throws Exception {
+			while (!batch.hasNext()) {
+				if (nextLeaf == leaves.size())
+					return null;
+				int end = Math.min(nextLeaf + batchSize, leaves.size());
+				try {
+					batch = SCAN_POOL.invoke(new ScanTask(leaves.subList(nextLeaf, end), predicate, projection))
+							.iterator();
+				} catch (RuntimeException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
+				}
+				nextLeaf = end;
+			}
+			return batch.next();
+		}
+	}
 
-			if (ordinalPosition == 1 && !IsMetaTable)
-				result = checkData((byte) 0x06, String.valueOf(cell.getRowId()), condition);
-			else
-				result = checkData(dataSTC[ordinalPosition - 2], data[ordinalPosition - 2], condition);
+	/**
+	 * Reads a range of leaves, splitting it in halves for other threads until at
+	 * most LEAVES_PER_TASK leaves are left. Pages are read with
+	 * PageFile.getPageForScan, so the scan neither waits on nor fills the
+	 * BufferPool.
+	 */
+	private class ScanTask extends RecursiveTask<List<Cell>> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Integer> leaves;
+		private final Predicate predicate;
+		private final boolean[] projection;
+
+		ScanTask(List<Integer> leaves, Predicate predicate, boolean[] projection) {
+			this.leaves = leaves;
+			this.predicate = predicate;
+			this.projection = projection;
+		}
 
-			if (result)
-				filteredRecords.put(entry.getKey(), entry.getValue());
+		@Override
+		protected List<Cell> compute() {
+			if (leaves.size() > LEAVES_PER_TASK) {
+				int half = leaves.size() / 2;
+				ScanTask first = new ScanTask(leaves.subList(0, half), predicate, projection);
+				first.fork();
+				List<Cell> second = new ScanTask(leaves.subList(half, leaves.size()), predicate, projection).compute();
+				List<Cell> rows = first.join();
+				rows.addAll(second);
+				return rows;
+			}
+			List<Cell> rows = new ArrayList<>();
+			try {
+				for (int leaf : leaves) {
+					Page p = tableFile.getPageForScan(leaf);
+					for (int recLoc : getCellPointers(p))
+						if (predicate.matches(p, recLoc))
+							rows.add(readCell(p, recLoc, projection));
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return rows;
 		}
+	}
+
+	/**
+	 * The leaf pages in row_id order, read off the interior pages. The tree is
+	 * balanced, so when the first child of an interior page is a leaf they all
+	 * are, and no leaf has to be read.
+	 */
+	private List<Integer> getLeafPages() throws IOException {
+		List<Integer> leaves = new ArrayList<>();
+		int root = getRootPage();
+		if (isNode(root))
+			collectLeafPages(root, leaves);
+		else
+			leaves.add(root);
+		return leaves;
+	}
 
-		return filteredRecords;
+	private void collectLeafPages(int page, List<Integer> leaves) throws IOException {
+		Page p = tableFile.getPage(page);
+		List<Integer> children = new ArrayList<>();
+		for (int cellLoc : getCellPointers(p))
+			children.add(p.getInt(cellLoc));
+		children.add(p.getInt(NEXT_PAGE));
+		if (isNode(children.get(0)))
+			for (int child : children)
+				collectLeafPages(child, leaves);
+		else
+			leaves.addAll(children);
 	}
 
-	private Map<Integer, Cell> getAllData() throws Exception {
-		int page = 0;
-		int nextPage = 1;
-		Map<Integer, Cell> allrecords = new LinkedHashMap<>();
-		while (nextPage != 0xFFFFFFFF) {
-			page = nextPage;
-			allrecords.putAll(getPageContent(page));
-			nextPage = fetchNextLeafPage(page);
+	/**
+	 * Reads the leaves that can hold rows satisfying =, <, <=, > or >= on row_id.
+	 */
+	private RecordCursor selectByRowId(Predicate.Comparison comparison, Predicate predicate, boolean[] projection)
+			throws Exception {
+		int[] range = getLeafRange(comparison);
+		if (range == null) {
+			return new RecordCursor() {
+				@Override
+				public Cell next() {
+					return null;
+				}
+			};
 		}
-		return allrecords;
+		return new LeafCursor(range[0], range[1], predicate, projection);
 	}
 
-	private Map<Integer, Cell> getPageContent(int page) throws Exception {
-		Map<Integer, Cell> allCells = new LinkedHashMap<>();
-		short[] pointerList = getCellPointers(page);
-		for (short recLoc : pointerList) {
-			PayLoad payLoad = new PayLoad();
-
-			tableFile.seek((page - 1) * FILESIZE + recLoc);
-			//read cell size
-			payLoad.setSize(tableFile.readShort());
-			//read row id
-			int rowId = tableFile.readInt();
-
-			payLoad.setNumberOfColumns(tableFile.readByte());
-
-			byte[] dataTypes = new byte[payLoad.getNoColumns()];
-			
-			//read all data types of columns & set
-			tableFile.read(dataTypes, 0, payLoad.getNoColumns());
-
-			payLoad.setDataTypes(dataTypes);
-
-			String[] dataArray = new String[payLoad.getNoColumns()];
-			for (int i = 0; i < payLoad.getNoColumns(); i++) {
-				int dataSize = getSizeByHeader(dataTypes[i]);
-
-				switch (dataTypes[i]) {
-				case 0x00:
-					dataArray[i] = "null";
-					break;
-
-				case 0x01:
-					dataArray[i] = "null";
-					break;
-
-				case 0x02:
-					dataArray[i] = "null";
-					break;
-
-				case 0x03:
-					dataArray[i] = "null";
-					break;
-
-				case 0x04:
-					dataArray[i] = Integer.toString(tableFile.readByte());
-					break;
-
-				case 0x05:
-					dataArray[i] = Integer.toString(tableFile.readShort());
-					break;
-
-				case 0x06:
-					dataArray[i] = Integer.toString(tableFile.readInt());
-					break;
-
-				case 0x07:
-					dataArray[i] = Long.toString(tableFile.readLong());
-					break;
-
-				case 0x08:
-					dataArray[i] = String.valueOf(tableFile.readFloat());
-					break;
-
-				case 0x09:
-					dataArray[i] = String.valueOf(tableFile.readDouble());
-					break;
-
-				case 0x0A:
-					long tmp = tableFile.readLong();
-					Date dateTime = new Date(tmp);
-					DateTimeFormatter formater = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-					dataArray[i] = formater.format((TemporalAccessor) dateTime);
-					break;
-
-				case 0x0B:
-					long tmp1 = tableFile.readLong();
-					Date date = new Date(tmp1);
-					DateTimeFormatter formater1 = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-					dataArray[i] = formater1.format((TemporalAccessor) date);
-					break;
-
-				default:
-					int len = dataSize;
-					byte[] bytes = new byte[len];
-					tableFile.read(bytes, 0, len);
-					dataArray[i] = new String(bytes);
-					break;
+	/**
+	 * The first and last leaf that can hold rows satisfying =, <, <=, > or >= on
+	 * row_id, the last being 0xFFFFFFFF for the end of the chain, or null when no
+	 * row_id can. Leaves are chained in row_id order, so the leaf of the lower
+	 * bound starts the range and the leaf of the upper bound ends it. The operand
+	 * is a long, as Predicate reads it, and bounds outside the int range of
+	 * row_ids are clamped to it.
+	 */
+	private int[] getLeafRange(Predicate.Comparison comparison) throws IOException {
+		long operand = Long.parseLong(comparison.getOperand());
+		int rowId = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, operand));
+		switch (comparison.getOperator()) {
+		case "=":
+			if (rowId != operand)
+				return null;
+			return new int[] { findLeafPage(rowId), findLeafPage(rowId) };
+		case ">":
+		case ">=":
+			if (operand > Integer.MAX_VALUE)
+				return null;
+			return new int[] { findLeafPage(rowId), 0xFFFFFFFF };
+		default:
+			if (operand < Integer.MIN_VALUE)
+				return null;
+			return new int[] { findLeafPage(Integer.MIN_VALUE), findLeafPage(rowId) };
+		}
+	}
+
+	/**
+	 * Answers a comparison on an indexed column from its index, fetching only the
+	 * rows it names, which are then tested on the whole predicate. Returns null
+	 * when no index can answer the comparison.
+	 */
+	private RecordCursor selectByIndex(Predicate.Comparison comparison, final Predicate predicate,
+			final boolean[] projection) throws Exception {
+		Index index = Indexes.get(comparison.getOrdinalPosition());
+		if (index == null || !index.supports(comparison.getOperator()))
+			return null;
+
+		final List<Integer> rowIds = index.search(comparison.getOperator(), comparison.getOperand());
+		Collections.sort(rowIds);
+		return new RecordCursor() {
+			private int next = 0;
+
+			@Override
+			public Cell next() throws Exception {
+				while (next < rowIds.size()) {
+					Cell cell = findRecord(rowIds.get(next++), predicate, projection);
+					if (cell != null)
+						return cell;
 				}
+				return null;
 			}
-			payLoad.setData(dataArray);
+		};
+	}
 
-			Cell cell = new Cell(recLoc, page);
-			cell.setPayLoadSize(payLoad.getSize());
-			cell.setPayload(payLoad);
-			cell.setRowId(rowId);
+	/**
+	 * The row with the given row_id, wherever it has moved, or null if there is
+	 * none.
+	 */
+	public Cell findRow(int rowId) throws Exception {
+		return findRecord(rowId, Predicate.ALL, null);
+	}
 
-			allCells.put(rowId, cell);
+	/**
+	 * The row with the given row_id, found by descending the tree and a binary
+	 * search over the row_id ordered cells of its leaf, or null if there is none
+	 * or it does not satisfy the predicate.
+	 */
+	private Cell findRecord(int rowId, Predicate predicate, boolean[] projection) throws Exception {
+		int page = findLeafPage(rowId);
+		Page p = tableFile.getPage(page);
+		int cellLoc = findCellLocation(p, rowId);
+		if (cellLoc == -1 || !predicate.matches(p, cellLoc))
+			return null;
+		return readCell(page, cellLoc, projection);
+	}
+
+	/**
+	 * The location of the cell of rowId on the leaf, or -1 if it has none.
+	 */
+	private static int findCellLocation(Page p, int rowId) {
+		int low = 0;
+		int high = (p.getShort(CELL_COUNT) & 0xFFFF) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cellLoc = p.getShort(PAGE_HEADER_SIZE + (mid * 2)) & 0xFFFF;
+			int cellRowId = p.getInt(cellLoc + 2);
+			if (cellRowId == rowId)
+				return cellLoc;
+			if (cellRowId < rowId)
+				low = mid + 1;
+			else
+				high = mid - 1;
 		}
-		return allCells;
+		return -1;
 	}
 
-	private short[] getCellPointers(int page) throws IOException {
-		int cellCount = getCellCountInPage(page);
-		short[] recPointers = new short[cellCount];
-		tableFile.seek((page - 1) * FILESIZE + 8);
-		for (int i = 0; i < cellCount; i++)
-			recPointers[i] = tableFile.readShort();
-		return recPointers;
+	/**
+	 * Computes aggregates such as count(*) or sum(column_name) over the rows
+	 * matching the condition, returning their values in order. The rows are found
+	 * as openCursor finds them, but each one is tested and added to the aggregates
+	 * where it lies on its page, in one pass, and no row is decoded.
+	 */
+	public String[] aggregate(String[] expressions, String[] condition) throws Exception {
+		Aggregate[] aggregates = new Aggregate[expressions.length];
+		for (int i = 0; i < expressions.length; i++)
+			aggregates[i] = new Aggregate(Schema, expressions[i]);
+		Predicate predicate = Predicate.compile(Schema, condition);
+		aggregateRows(aggregates, predicate);
+
+		String[] results = new String[aggregates.length];
+		for (int i = 0; i < aggregates.length; i++)
+			results[i] = aggregates[i].getResult();
+		return results;
 	}
 
-	public boolean checkData(byte headerCode, String data, String[] condition) throws Exception {
-		if (!isNullHeader(headerCode)) {
-			if (headerCode >= 0x04 && headerCode <= 0x07) {
-				Long longData = Long.parseLong(data);
-				switch (condition[1]) {
-				case "=":
-					if (longData == Long.parseLong(condition[2]))
-						return true;
-					break;
-				case ">":
-					if (longData > Long.parseLong(condition[2]))
-						return true;
-					break;
-				case "<":
-					if (longData < Long.parseLong(condition[2]))
-						return true;
-					break;
-				case "<=":
-					if (longData <= Long.parseLong(condition[2]))
-						return true;
-					break;
-				case ">=":
-					if (longData >= Long.parseLong(condition[2]))
-						return true;
-					break;
-				case "<>":
-					if (longData != Long.parseLong(condition[2]))
-						return true;
-					break;
-				default:
-					throw new Exception("Unknown comparision operation '" + condition[2] + "'.");
-				}
-			} else if (headerCode == 0x08 || headerCode == 0x09) {
-				Double doubleData = Double.parseDouble(data);
-				switch (condition[1]) {
-				case "=":
-					if (doubleData == Double.parseDouble(condition[2]))
-						return true;
-					break;
-				case ">":
-					if (doubleData > Double.parseDouble(condition[2]))
-						return true;
-					break;
-				case "<":
-					if (doubleData < Double.parseDouble(condition[2]))
-						return true;
-					break;
-				case "<=":
-					if (doubleData <= Double.parseDouble(condition[2]))
-						return true;
-					break;
-				case ">=":
-					if (doubleData >= Double.parseDouble(condition[2]))
-						return true;
-					break;
-				case "<>":
-					if (doubleData != Double.parseDouble(condition[2]))
-						return true;
-					break;
-				default:
-					throw new Exception("Unknown comparision operation '" + condition[2] + "'.");
-				}
-			} else if (headerCode >= 0x0C) {
-
-				condition[2] = condition[2].replaceAll("'", "");
-				condition[2] = condition[2].replaceAll("\"", "");
-				switch (condition[1]) {
-				case "=":
-					if (data.equalsIgnoreCase(condition[2]))
-						return true;
-					break;
-				case "<>":
-					if (!data.equalsIgnoreCase(condition[2]))
-						return true;
-					break;
-				default:
-					System.out.println("undefined operator return false");
-					return false;
-				}
+	private void aggregateRows(Aggregate[] aggregates, Predicate predicate) throws Exception {
+		List<Predicate.Comparison> conjuncts = predicate.getConjuncts();
+		for (Predicate.Comparison comparison : conjuncts) {
+			if (comparison.getOrdinalPosition() == 1 && !comparison.getOperator().equals("<>")) {
+				int[] range = getLeafRange(comparison);
+				if (range != null)
+					aggregateLeaves(range[0], range[1], aggregates, predicate);
+				return;
 			}
 		}
-		return false;
+		for (Predicate.Comparison comparison : conjuncts) {
+			Index index = Indexes.get(comparison.getOrdinalPosition());
+			if (index == null || !index.supports(comparison.getOperator()))
+				continue;
+			List<Integer> rowIds = index.search(comparison.getOperator(), comparison.getOperand());
+			Collections.sort(rowIds);
+			for (int rowId : rowIds) {
+				Page p = tableFile.getPage(findLeafPage(rowId));
+				int cellLoc = findCellLocation(p, rowId);
+				if (cellLoc != -1 && predicate.matches(p, cellLoc))
+					for (Aggregate aggregate : aggregates)
+						aggregate.add(p, cellLoc);
+			}
+			return;
+		}
+		aggregateLeaves(1, 0xFFFFFFFF, aggregates, predicate);
+	}
+
+	/**
+	 * Adds the rows satisfying the predicate on the leaves from firstLeaf up to
+	 * lastLeaf, or to the end of the chain.
+	 */
+	private void aggregateLeaves(int firstLeaf, int lastLeaf, Aggregate[] aggregates, Predicate predicate)
+			throws Exception {
+		for (int page = firstLeaf; page != 0xFFFFFFFF; page = (page == lastLeaf) ? 0xFFFFFFFF
+				: fetchNextLeafPage(page)) {
+			Page p = tableFile.getPage(page);
+			for (int recLoc : getCellPointers(p))
+				if (predicate.matches(p, recLoc))
+					for (Aggregate aggregate : aggregates)
+						aggregate.add(p, recLoc);
+		}
+	}
+
+	private Map<Integer, Cell> getPageContent(int page) throws Exception {
+		Map<Integer, Cell> allCells = new LinkedHashMap<>();
+		for (int recLoc : getCellPointers(page)) {
+			Cell cell = readCell(page, recLoc);
+			allCells.put(cell.getRowId(), cell);
+		}
+		return allCells;
+	}
+
+	private Cell readCell(int page, int recLoc) throws Exception {
+		return readCell(page, recLoc, null);
+	}
+
+	/**
+	 * Reads the cell at recLoc. The column values are copied as stored, getData
+	 * formats only the columns flagged in projection, indexed like the payload. A
+	 * null projection formats every column.
+	 */
+	private Cell readCell(int page, int recLoc, boolean[] projection) throws Exception {
+		return readCell(tableFile.getPage(page), recLoc, projection);
+	}
+
+	private Cell readCell(Page p, int recLoc, boolean[] projection) throws Exception {
+		PayLoad payLoad = new PayLoad();
+
+		int pos = recLoc;
+		//read cell size
+		payLoad.setSize(p.getShort(pos) & 0xFFFF);
+		//read row id
+		int rowId = p.getInt(pos + 2);
+
+		payLoad.setNumberOfColumns(p.getByte(pos + 6));
+		pos += 7;
+
+		byte[] dataTypes = new byte[payLoad.getNoColumns()];
+		
+		//read all data types of columns & set
+		p.getBytes(pos, dataTypes);
+		pos += dataTypes.length;
+
+		payLoad.setDataTypes(dataTypes);
+
+		int size = 0;
+		for (byte dataType : dataTypes)
+			size += getSizeByHeader(dataType);
+		byte[] values = new byte[size];
+		p.getBytes(pos, values);
+		payLoad.setValues(values);
+		payLoad.setProjection(projection);
+
+		Cell cell = new Cell(recLoc, p.getPageNumber());
+		cell.setPayLoadSize(payLoad.getSize());
+		cell.setPayload(payLoad);
+		cell.setRowId(rowId);
+		return cell;
+	}
+
+	private int[] getCellPointers(int page) throws IOException {
+		return getCellPointers(tableFile.getPage(page));
+	}
+
+	private static int[] getCellPointers(Page p) {
+		int cellCount = p.getShort(CELL_COUNT) & 0xFFFF;
+		int[] recPointers = new int[cellCount];
+		for (int i = 0; i < cellCount; i++)
+			recPointers[i] = p.getShort(PAGE_HEADER_SIZE + (i * 2)) & 0xFFFF;
+		return recPointers;
 	}
 
-	private static int getDataTypeSize(String dataType, int length) {
+	static int getDataTypeSize(String dataType, int length) {
 		int size = 0;
 		switch (dataType.trim()) {
 		case "tinyint": {
@@ -877,6 +1704,11 @@ public class Table {
 			return isNull ? 0x03 : 0x0B;
 		}
 		case "text": {
+			if (isNull)
+				return 0x00;
+			if (length > MAX_TEXT_LENGTH)
+				throw new Exception("Text values can be at most " + MAX_TEXT_LENGTH + " characters long, got "
+						+ length + ".");
 			return 0x0C + length;
 		}
 		default:
@@ -884,7 +1716,9 @@ public class Table {
 		}
 	}
 
-	private static int getSizeByHeader(int header) throws Exception {
+	static int getSizeByHeader(int header) throws Exception {
+		// serial types are stored as signed bytes, text longer than 115 is negative
+		header &= 0xFF;
 		switch (header) {
 		case 0x00:
 		case 0x04: {
@@ -915,37 +1749,80 @@ public class Table {
 		}
 	}
 
-	private static boolean isNullHeader(int header) {
-		return header >= 0x00 && header <= 0x03;
-	}
-
 	public void closeFile() throws IOException {
+		for (Index index : Indexes.values())
+			index.close();
 		tableFile.close();
 	}
 
-	public void deleteRec(int pageNumber, short location) throws IOException {
-		short[] pointers = getCellPointers(pageNumber);
-		int cellCount = getCellCountInPage(pageNumber);
-		int index = findIndex(pointers, location);
-		if (index != -1) {
-			tableFile.seek((pageNumber - 1) * FILESIZE + 8 + (index * 2));
-			for (int i = index + 1; i < pointers.length; i++) {
-				tableFile.writeShort(pointers[i]);
-			}
-			tableFile.writeShort(0);
-			setRecordCount(pageNumber, cellCount - 1);
+	/**
+	 * Latches the table for reading. Any number of statements read at once, while
+	 * no statement holds the table exclusively.
+	 */
+	public void latchShared() {
+		latch.readLock().lock();
+	}
+
+	public void unlatchShared() {
+		latch.readLock().unlock();
+	}
+
+	/**
+	 * Latches the table for a change. The latch is held until the statement ends
+	 * with TableRegistry.endStatement, after its changes are committed, so no other
+	 * statement sees them half done. A statement reading the table has to let go
+	 * of it first, a shared latch can not be turned into an exclusive one.
+	 */
+	public void latchExclusive() {
+		if (latch.isWriteLockedByCurrentThread())
+			return;
+		if (latch.getReadHoldCount() > 0)
+			throw new IllegalStateException(TableName + " is latched for reading by this statement.");
+		latch.writeLock().lock();
+		TableRegistry.getInstance().holdUntilEnd(this);
+	}
+
+	void unlatchExclusive() {
+		latch.writeLock().unlock();
+	}
+
+	boolean isLatched() {
+		return latch.isWriteLocked() || latch.getReadLockCount() > 0;
+	}
+
+	/**
+	 * Closes the file once the statements using the table are done with it.
+	 */
+	void closeWhenIdle() throws IOException {
+		latch.writeLock().lock();
+		try {
+			closeFile();
+		} finally {
+			latch.writeLock().unlock();
 		}
 	}
 
-	private void setRecordCount(int page, int count) throws IOException {
-		tableFile.seek((page - 1) * FILESIZE + 1);
-		tableFile.writeByte(count);
+	/**
+	 * Removes the cells at the given locations from a leaf, writing what is left of
+	 * its cell pointers in one go. The cells stay where they are until the leaf
+	 * is compacted.
+	 */
+	private void removeRecs(int page, Set<Integer> locations) throws IOException {
+		Page p = tableFile.getPage(page);
+		int[] pointers = getCellPointers(p);
+		ByteBuffer kept = ByteBuffer.allocate(pointers.length * 2);
+		for (int pointer : pointers)
+			if (!locations.contains(pointer))
+				kept.putShort((short) pointer);
+		int count = kept.position() / 2;
+		p.putBytes(PAGE_HEADER_SIZE, kept.array(), 0, kept.position());
+		setRecordCount(page, count);
+
+		Page header = tableFile.getPage(0);
+		header.putInt(ROW_COUNT, header.getInt(ROW_COUNT) - (pointers.length - count));
 	}
 
-	private int findIndex(short[] array, short item) {
-		for (int i = 0; i < array.length; i++)
-			if (array[i] == item)
-				return i;
-		return -1;
+	private void setRecordCount(int page, int count) throws IOException {
+		tableFile.getPage(page).putShort(CELL_COUNT, count);
 	}
 }
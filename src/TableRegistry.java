@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide registry of open tables. Statements acquire a table here instead
+ * of opening its file, so a table is opened once, with its schema and indexes,
+ * and then shared by every statement that uses it.
+ *
+ * Each table counts the statements using it. Once more tables are open than the
+ * davisbase.tables.open system property allows, 64 by default, the least
+ * recently used tables no statement is using or has latched are closed.
+ *
+ * A table is opened outside the registry lock, as opening it reads the catalog,
+ * which may be latched by a statement that needs the registry before it lets go
+ * of the latch. The tables a statement latched exclusively are let go of in
+ * endStatement, once its changes are committed.
+ */
+public class TableRegistry {
+
+	private static final int DEFAULT_MAX_OPEN = 64;
+	private static final TableRegistry instance = new TableRegistry(
+			Integer.getInteger("davisbase.tables.open", DEFAULT_MAX_OPEN));
+
+	private static class Handle {
+		final Table table = new Table();
+		int refCount;
+		// read without the handle lock, which is held while the table opens
+		private volatile boolean opened = false;
+
+		synchronized void open(String path, String tableName) throws Exception {
+			if (!opened) {
+				table.initTable(path, tableName);
+				opened = true;
+			}
+		}
+
+		boolean isOpened() {
+			return opened;
+		}
+	}
+
+	private final int maxOpen;
+	// access ordered, so idle tables are closed least recently used first
+	private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+	// tables the statement running on the thread holds exclusively
+	private final ThreadLocal<List<Table>> latched = new ThreadLocal<List<Table>>() {
+		@Override
+		protected List<Table> initialValue() {
+			return new ArrayList<>();
+		}
+	};
+
+	public TableRegistry(int maxOpen) {
+		this.maxOpen = maxOpen;
+	}
+
+	public static TableRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the open table, opening it first if needed. Every acquire has to be
+	 * matched by a release once the statement is done with the table.
+	 */
+	public Table acquire(String path, String tableName) throws Exception {
+		String key = key(path, tableName);
+		Handle handle;
+		synchronized (this) {
+			handle = handles.get(key);
+			if (handle == null) {
+				handle = new Handle();
+				handles.put(key, handle);
+			}
+			handle.refCount++;
+		}
+		try {
+			handle.open(path, tableName);
+		} catch (Exception e) {
+			synchronized (this) {
+				handle.refCount--;
+				if (handles.get(key) == handle && !handle.isOpened())
+					handles.remove(key);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			closeIdle();
+		}
+		return handle.table;
+	}
+
+	public synchronized void release(String path, String tableName) throws IOException {
+		Handle handle = handles.get(key(path, tableName));
+		if (handle != null && handle.refCount > 0)
+			handle.refCount--;
+		closeIdle();
+	}
+
+	/**
+	 * Closes the table, used before its file is deleted or recreated. Statements
+	 * still using the table finish first.
+	 */
+	public void close(String path, String tableName) throws IOException {
+		Handle handle;
+		synchronized (this) {
+			handle = handles.remove(key(path, tableName));
+		}
+		if (handle != null && handle.isOpened())
+			handle.table.closeWhenIdle();
+	}
+
+	/**
+	 * Keeps the exclusive latch of a table until the statement ends.
+	 */
+	void holdUntilEnd(Table table) {
+		latched.get().add(table);
+	}
+
+	/**
+	 * Ends the statement running on this thread, letting go of the tables it
+	 * latched exclusively. Its changes have to be committed first.
+	 */
+	public void endStatement() {
+		List<Table> tables = latched.get();
+		for (Table table : tables)
+			table.unlatchExclusive();
+		tables.clear();
+	}
+
+	public synchronized void closeAll() throws IOException {
+		List<Handle> open = new ArrayList<>(handles.values());
+		handles.clear();
+		for (Handle handle : open)
+			if (handle.isOpened())
+				handle.table.closeFile();
+	}
+
+	private void closeIdle() throws IOException {
+		Iterator<Map.Entry<String, Handle>> it = handles.entrySet().iterator();
+		while (handles.size() > maxOpen && it.hasNext()) {
+			Handle handle = it.next().getValue();
+			if (handle.refCount == 0 && handle.isOpened() && !handle.table.isLatched()) {
+				it.remove();
+				handle.table.closeFile();
+			}
+		}
+	}
+
+	private static String key(String path, String tableName) {
+		return path + "/" + tableName;
+	}
+}
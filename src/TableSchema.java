@@ -0,0 +1,54 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The columns of one table, parsed once from davisbase_columns. Every map is
+ * keyed by ordinal position, iterates in that order and can not be modified, so
+ * a schema can be shared by all the Table objects of the table.
+ */
+public class TableSchema {
+	private final Map<Integer, ColumnData> columns;
+	private final Map<Integer, String> columnNames;
+	private final Map<Integer, String> dataTypes;
+	private final Map<Integer, String> nullable;
+
+	public TableSchema(Iterable<ColumnData> columnData) {
+		Map<Integer, ColumnData> byPosition = new TreeMap<>();
+		for (ColumnData col : columnData)
+			byPosition.put(col.ordinal_position, col);
+
+		Map<Integer, String> names = new LinkedHashMap<>();
+		Map<Integer, String> types = new LinkedHashMap<>();
+		Map<Integer, String> isNullable = new LinkedHashMap<>();
+		for (ColumnData col : byPosition.values()) {
+			names.put(col.ordinal_position, col.column_name);
+			types.put(col.ordinal_position, col.data_type);
+			isNullable.put(col.ordinal_position, col.is_nullable ? "YES" : "NO");
+		}
+		columns = Collections.unmodifiableMap(new LinkedHashMap<>(byPosition));
+		columnNames = Collections.unmodifiableMap(names);
+		dataTypes = Collections.unmodifiableMap(types);
+		nullable = Collections.unmodifiableMap(isNullable);
+	}
+
+	public Map<Integer, ColumnData> getColumns() {
+		return columns;
+	}
+
+	public Map<Integer, String> getColumnNames() {
+		return columnNames;
+	}
+
+	public Map<Integer, String> getDataTypes() {
+		return dataTypes;
+	}
+
+	/**
+	 * "YES" or "NO" per column, as stored in davisbase_columns.
+	 */
+	public Map<Integer, String> getNullable() {
+		return nullable;
+	}
+}
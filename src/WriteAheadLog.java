@@ -0,0 +1,320 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of the pages changed by each statement, kept in data/davisbase.wal.
+ * When a statement ends the BufferPool appends the image of every page it
+ * changed followed by a commit record, and the pages reach their table files
+ * later, when they are evicted or at a checkpoint. On startup the images of
+ * committed statements are written back to the table files, so a crash loses
+ * neither a committed statement nor the consistency of a tree in the middle of
+ * a split.
+ *
+ * Commits do not wait for an fsync of their own. With the default
+ * davisbase.wal.sync.interval of 10 ms a background thread syncs the log that
+ * often, so a crash loses at most the statements of the last interval. With an
+ * interval of 0 each commit waits until its records are synced, and statements
+ * committing at the same time share one fsync.
+ *
+ * A record is its type (1), the length of its body (4), the body and a CRC32
+ * of all that (4). Page records hold the file name, page number and page
+ * image, reset records the name of a file that was deleted or recreated.
+ */
+public class WriteAheadLog {
+
+	private static final String FILE_NAME = "data/davisbase.wal";
+	private static final long DEFAULT_SYNC_INTERVAL = 10;
+	private static final byte PAGE = 1;
+	private static final byte RESET = 2;
+	private static final byte COMMIT = 3;
+	private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+
+	private static final WriteAheadLog instance = new WriteAheadLog(FILE_NAME,
+			Long.getLong("davisbase.wal.sync.interval", DEFAULT_SYNC_INTERVAL));
+
+	private final String fileName;
+	private final long syncInterval;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	// log sequence numbers are offsets into the log, counted across checkpoints
+	// from the first record ever written, base being the one of the file start
+	private long base = 0;
+	private long writtenLsn = 0;
+	private long durableLsn = 0;
+	private boolean syncing = false;
+	private Thread syncer;
+
+	public WriteAheadLog(String fileName, long syncInterval) {
+		this.fileName = fileName;
+		this.syncInterval = syncInterval;
+	}
+
+	public static WriteAheadLog getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Appends the images of the given pages and a commit record, and returns the
+	 * log sequence number the commit is durable at.
+	 */
+	public synchronized long commit(List<Page> pages) throws IOException {
+		int size = RECORD_OVERHEAD;
+		for (Page page : pages)
+			size += RECORD_OVERHEAD + pageBodySize(page);
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Page page : pages) {
+			putPageRecord(buffer, page);
+			page.setLsn(writtenLsn + buffer.position());
+		}
+		putRecord(buffer, COMMIT, new byte[0]);
+		return write(buffer);
+	}
+
+	/**
+	 * Logs the image of a page that has to be written to its file before its
+	 * statement commits, and returns the log sequence number to sync to first.
+	 */
+	public synchronized long log(Page page) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_OVERHEAD + pageBodySize(page));
+		putPageRecord(buffer, page);
+		long lsn = write(buffer);
+		page.setLsn(lsn);
+		return lsn;
+	}
+
+	/**
+	 * Logs that a file is about to be deleted or recreated, so the pages logged
+	 * for it before are not replayed into whatever file takes its name.
+	 */
+	public synchronized void reset(String pageFileName) throws IOException {
+		byte[] name = pageFileName.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(2 + name.length);
+		body.putShort((short) name.length);
+		body.put(name);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_OVERHEAD + body.capacity());
+		putRecord(buffer, RESET, body.array());
+		write(buffer);
+	}
+
+	/**
+	 * Waits for a commit to be durable, if commits are synced one by one.
+	 */
+	public void awaitCommit(long lsn) throws IOException {
+		if (syncInterval <= 0)
+			sync(lsn);
+	}
+
+	/**
+	 * Makes the log durable up to lsn. The thread that finds no sync running
+	 * syncs everything written so far, the others wait for it.
+	 */
+	public void sync(long lsn) throws IOException {
+		long target;
+		synchronized (this) {
+			while (durableLsn < lsn && syncing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while syncing the write-ahead log", e);
+				}
+			}
+			if (durableLsn >= lsn || channel == null)
+				return;
+			syncing = true;
+			target = writtenLsn;
+		}
+		try {
+			channel.force(false);
+		} finally {
+			synchronized (this) {
+				syncing = false;
+				durableLsn = Math.max(durableLsn, target);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Makes everything written to the log so far durable.
+	 */
+	public void sync() throws IOException {
+		long lsn;
+		synchronized (this) {
+			lsn = writtenLsn;
+		}
+		sync(lsn);
+	}
+
+	public synchronized long size() {
+		return writtenLsn - base;
+	}
+
+	/**
+	 * Empties the log, once every page logged in it has reached its file.
+	 */
+	public synchronized void truncate() throws IOException {
+		if (channel == null || writtenLsn == base)
+			return;
+		channel.truncate(0);
+		channel.force(true);
+		base = writtenLsn;
+		durableLsn = writtenLsn;
+	}
+
+	/**
+	 * Writes the pages of every statement the log holds a commit for to their
+	 * files and empties the log, ignoring the records of a statement that was
+	 * cut short. Returns the number of statements replayed.
+	 */
+	public synchronized int recover() throws IOException {
+		File log = new File(fileName);
+		if (!log.exists() || log.length() == 0)
+			return 0;
+
+		int statements = 0;
+		Map<String, RandomAccessFile> files = new HashMap<>();
+		RandomAccessFile in = new RandomAccessFile(log, "r");
+		try {
+			List<ByteBuffer> pending = new ArrayList<>();
+			ByteBuffer record;
+			while ((record = readRecord(in)) != null) {
+				if (record.get(0) == COMMIT) {
+					for (ByteBuffer redo : pending)
+						redo(redo, files);
+					pending.clear();
+					statements++;
+				} else
+					pending.add(record);
+			}
+		} finally {
+			in.close();
+			for (RandomAccessFile f : files.values()) {
+				f.getFD().sync();
+				f.close();
+			}
+		}
+		new RandomAccessFile(log, "rw").getChannel().truncate(0).close();
+		return statements;
+	}
+
+	private void redo(ByteBuffer record, Map<String, RandomAccessFile> files) throws IOException {
+		record.position(1 + 4);
+		byte[] name = new byte[record.getShort()];
+		record.get(name);
+		String pageFileName = new String(name, StandardCharsets.UTF_8);
+
+		RandomAccessFile f = files.remove(pageFileName);
+		if (record.get(0) == RESET) {
+			if (f != null)
+				f.close();
+			new File(pageFileName).delete();
+			return;
+		}
+		if (f == null)
+			f = new RandomAccessFile(pageFileName, "rw");
+		files.put(pageFileName, f);
+		int pageNumber = record.getInt();
+		byte[] image = new byte[record.getInt()];
+		record.get(image);
+		f.seek((long) pageNumber * image.length);
+		f.write(image);
+	}
+
+	/**
+	 * The next whole record with a matching checksum, or null at the end of the
+	 * log or of the part of it that was written completely.
+	 */
+	private static ByteBuffer readRecord(RandomAccessFile in) throws IOException {
+		try {
+			byte type = in.readByte();
+			int length = in.readInt();
+			if (type < PAGE || type > COMMIT || length < 0 || length > in.length() - in.getFilePointer())
+				return null;
+			ByteBuffer record = ByteBuffer.allocate(1 + 4 + length);
+			record.put(type);
+			record.putInt(length);
+			in.readFully(record.array(), 1 + 4, length);
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), 0, record.capacity());
+			if ((int) crc.getValue() != in.readInt())
+				return null;
+			return record;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static int pageBodySize(Page page) {
+		return 2 + page.getFile().getFileName().getBytes(StandardCharsets.UTF_8).length + 4 + 4 + page.getSize();
+	}
+
+	private static void putPageRecord(ByteBuffer buffer, Page page) {
+		byte[] name = page.getFile().getFileName().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer body = ByteBuffer.allocate(pageBodySize(page));
+		body.putShort((short) name.length);
+		body.put(name);
+		body.putInt(page.getPageNumber());
+		body.putInt(page.getSize());
+		ByteBuffer image = page.getBuffer().duplicate();
+		image.clear();
+		body.put(image);
+		putRecord(buffer, PAGE, body.array());
+	}
+
+	private static void putRecord(ByteBuffer buffer, byte type, byte[] body) {
+		int start = buffer.position();
+		buffer.put(type);
+		buffer.putInt(body.length);
+		buffer.put(body);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), start, buffer.position() - start);
+		buffer.putInt((int) crc.getValue());
+	}
+
+	private long write(ByteBuffer buffer) throws IOException {
+		if (channel == null)
+			open();
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer, writtenLsn - base + buffer.position());
+		writtenLsn += buffer.limit();
+		return writtenLsn;
+	}
+
+	private void open() throws IOException {
+		file = new RandomAccessFile(fileName, "rw");
+		channel = file.getChannel();
+		base = writtenLsn - channel.size();
+		if (syncInterval > 0) {
+			syncer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(syncInterval);
+							sync();
+						} catch (InterruptedException e) {
+							return;
+						} catch (IOException e) {
+							System.out.println("Error: Couldn't sync the write-ahead log");
+							e.printStackTrace();
+						}
+					}
+				}
+			}, "wal-sync");
+			syncer.setDaemon(true);
+			syncer.start();
+		}
+	}
+}